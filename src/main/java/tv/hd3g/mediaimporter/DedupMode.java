@@ -0,0 +1,42 @@
+/*
+ * This file is part of mediaimporter.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * Copyright (C) hdsdi3g for hd3g.tv 2019
+ *
+*/
+package tv.hd3g.mediaimporter;
+
+public enum DedupMode {
+
+	/**
+	 * Only search a previous copy at the same relative path
+	 */
+	OFF,
+	/**
+	 * A file with the same content, anywhere on a destination, is used as the copy: nothing is written.
+	 */
+	SKIP,
+	/**
+	 * A file with the same content, anywhere on a destination, is hard linked in the session slot instead of copied.
+	 * Fall back to a copy if the destination filesystem refuses hard links.
+	 */
+	HARDLINK;
+
+	/**
+	 * @return from "copy.dedup" property, OFF by default
+	 */
+	public static DedupMode getFromConfig() {
+		return DedupMode.valueOf(System.getProperty("copy.dedup", OFF.name()).trim().toUpperCase());
+	}
+
+}
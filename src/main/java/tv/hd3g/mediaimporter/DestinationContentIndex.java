@@ -0,0 +1,208 @@
+/*
+ * This file is part of mediaimporter.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * Copyright (C) hdsdi3g for hd3g.tv 2019
+ *
+*/
+package tv.hd3g.mediaimporter;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.DirectoryIteratorException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import tv.hd3g.mediaimporter.io.CopyOperation;
+import tv.hd3g.mediaimporter.tools.DigestIndex;
+
+/**
+ * All the copied files of a destination, by size, regardless of their slot and path.
+ * Slots are walked only one time, on the first search after their creation or discovery, and copies are added after each copy.
+ * Each change (indexed or removed slot, added copy) increments the generation.
+ * Thread safe.
+ */
+class DestinationContentIndex {
+	private static Logger log = LogManager.getLogger();
+
+	private final ConcurrentHashMap<Long, Set<File>> filesBySize;
+	private final Set<File> indexedSlotDirs;
+	private final AtomicLong generation;
+
+	DestinationContentIndex() {
+		filesBySize = new ConcurrentHashMap<>();
+		indexedSlotDirs = ConcurrentHashMap.newKeySet();
+		generation = new AtomicLong();
+	}
+
+	/**
+	 * @return only increasing, changed after each change on this index
+	 */
+	long getGeneration() {
+		return generation.get();
+	}
+
+	/**
+	 * Walk the new slots, and forget the removed slots.
+	 */
+	synchronized void update(final List<File> slotDirs) {
+		final Set<File> actualSlotDirs = slotDirs.stream().map(File::getAbsoluteFile).collect(Collectors.toUnmodifiableSet());
+
+		indexedSlotDirs.stream().filter(slotDir -> actualSlotDirs.contains(slotDir) == false).collect(Collectors.toUnmodifiableList()).forEach(oldSlotDir -> {
+			final String oldSlotDirPath = oldSlotDir.getPath() + File.separator;
+			filesBySize.values().forEach(files -> files.removeIf(f -> f.getPath().startsWith(oldSlotDirPath)));
+			indexedSlotDirs.remove(oldSlotDir);
+			generation.incrementAndGet();
+		});
+
+		actualSlotDirs.stream().filter(slotDir -> indexedSlotDirs.contains(slotDir) == false).forEach(slotDir -> {
+			log.debug("Index content of {}", slotDir);
+			try {
+				SourceWalker.walkPool.invoke(new DirectoryWalk(slotDir.toPath(), true));
+				indexedSlotDirs.add(slotDir);
+				generation.incrementAndGet();
+			} catch (final RuntimeException e) {
+				log.warn("Can't index content of " + slotDir, e);
+			}
+		});
+	}
+
+	void add(final File copy) {
+		if (copy.isHidden() || isIgnored(copy.getName())) {
+			return;
+		}
+		filesBySize.computeIfAbsent(copy.length(), s -> ConcurrentHashMap.newKeySet()).add(copy.getAbsoluteFile());
+		generation.incrementAndGet();
+	}
+
+	private static boolean isIgnored(final String fileName) {
+		return fileName.startsWith(".") || fileName.endsWith(CopyOperation.suffixCopyFileName);
+	}
+
+	/**
+	 * Candidates are the files with the same size and sampled fingerprint, compared with their full digests if stored for the source and the candidate
+	 * (computed during a copy or an integrity check), else with their CRC32 (computed only one time by file, see DigestIndex).
+	 * Blocking (file reads): never on the FX thread.
+	 * @return empty for empty files
+	 */
+	Optional<File> searchSameContent(final File source, final DigestIndex digestIndex) {
+		final long size = source.length();
+		if (size == 0) {
+			return Optional.empty();
+		}
+		final Set<File> candidates = filesBySize.getOrDefault(size, Set.of());
+		if (candidates.isEmpty()) {
+			return Optional.empty();
+		}
+
+		/**
+		 * The sampled fingerprints are cheap: they discard most of the candidates before a full read.
+		 */
+		final String sourceSampled = digestIndex.getSampledFingerprint(source);
+		final List<File> sampledCandidates = candidates.stream().filter(candidate -> candidate.exists() && candidate.length() == size).filter(candidate -> {
+			return digestIndex.getSampledFingerprint(candidate).equals(sourceSampled);
+		}).collect(Collectors.toUnmodifiableList());
+		if (sampledCandidates.isEmpty()) {
+			return Optional.empty();
+		}
+
+		final Map<String, String> sourceDigests = getFullDigests(source, digestIndex);
+		Long sourceCRC32 = null;
+		for (final File candidate : sampledCandidates) {
+			final Map<String, String> candidateDigests = getFullDigests(candidate, digestIndex);
+			final List<String> sameKinds = sourceDigests.keySet().stream().filter(candidateDigests::containsKey).collect(Collectors.toUnmodifiableList());
+			if (sameKinds.isEmpty() == false) {
+				/**
+				 * No file reads: all the stored digests must match.
+				 */
+				if (sameKinds.stream().allMatch(kind -> sourceDigests.get(kind).equalsIgnoreCase(candidateDigests.get(kind)))) {
+					return Optional.of(candidate);
+				}
+				continue;
+			}
+
+			if (sourceCRC32 == null) {
+				sourceCRC32 = digestIndex.getCRC32(source);
+			}
+			if (digestIndex.getCRC32(candidate) == sourceCRC32) {
+				return Optional.of(candidate);
+			}
+		}
+		return Optional.empty();
+	}
+
+	/**
+	 * @return only the stored digests computed on all the file datas (see MainClass.DIGEST_NAMES)
+	 */
+	private static Map<String, String> getFullDigests(final File file, final DigestIndex digestIndex) {
+		final Map<String, String> stored = digestIndex.get(file);
+		return Arrays.stream(MainClass.DIGEST_NAMES).filter(stored::containsKey).collect(Collectors.toUnmodifiableMap(name -> name, stored::get));
+	}
+
+	private class DirectoryWalk extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+
+		private final Path dir;
+		private final boolean slotRoot;
+
+		private DirectoryWalk(final Path dir, final boolean slotRoot) {
+			this.dir = dir;
+			this.slotRoot = slotRoot;
+		}
+
+		@Override
+		protected void compute() {
+			final List<DirectoryWalk> subDirs = new ArrayList<>();
+
+			try (final DirectoryStream<Path> content = Files.newDirectoryStream(dir)) {
+				for (final Path path : content) {
+					final BasicFileAttributes attributes;
+					try {
+						attributes = Files.readAttributes(path, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+					} catch (final IOException e) {
+						log.warn("Can't read attributes for " + path, e);
+						continue;
+					}
+					if (attributes.isDirectory()) {
+						subDirs.add(new DirectoryWalk(path, false));
+					} else if (attributes.isRegularFile() && slotRoot == false && isIgnored(path.getFileName().toString()) == false && path.toFile().isHidden() == false) {
+						/**
+						 * Slot root files are not copies (history, digest lists), copies are in the drive reference dirs.
+						 */
+						filesBySize.computeIfAbsent(attributes.size(), s -> ConcurrentHashMap.newKeySet()).add(path.toFile().getAbsoluteFile());
+					}
+				}
+			} catch (final IOException | DirectoryIteratorException e) {
+				log.warn("Can't walk in " + dir, e);
+			}
+
+			invokeAll(subDirs);
+		}
+	}
+
+}
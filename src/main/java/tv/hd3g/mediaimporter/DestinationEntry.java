@@ -22,9 +22,8 @@ import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
-import java.util.Map;
 import java.util.Objects;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.Optional;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.stream.Collectors;
 
@@ -37,6 +36,7 @@ import javafx.collections.ListChangeListener;
 import javafx.collections.ObservableList;
 import javafx.scene.control.TableColumn.CellDataFeatures;
 import javafx.util.Callback;
+import tv.hd3g.mediaimporter.tools.DigestIndex;
 
 public class DestinationEntry extends BaseSourceDestEntry {
 
@@ -46,7 +46,8 @@ public class DestinationEntry extends BaseSourceDestEntry {
 	private final SimpleLongProperty writeSpeed;
 	private final AtomicLong copiedDatasBytes;
 	private final AtomicLong copiedDurationsNanoSec;
-	private final ConcurrentHashMap<File, Long> digestByFileCache;
+	private final DestinationContentIndex contentIndex;
+	private final DestinationSlotIndex slotIndex;
 
 	private final ObservableList<DestinationEntrySlot> slots;
 	private DestinationEntrySlot currentSessionSlot;
@@ -59,7 +60,8 @@ public class DestinationEntry extends BaseSourceDestEntry {
 		slots = FXCollections.observableList(new ArrayList<>());
 		copiedDatasBytes = new AtomicLong(0);
 		copiedDurationsNanoSec = new AtomicLong(0);
-		digestByFileCache = new ConcurrentHashMap<>();
+		contentIndex = new DestinationContentIndex();
+		slotIndex = new DestinationSlotIndex();
 	}
 
 	static final FilenameFilter validDirNonHidden = (dir, name) -> {
@@ -67,10 +69,6 @@ public class DestinationEntry extends BaseSourceDestEntry {
 		return file.isDirectory() & file.isHidden() == false & file.getName().startsWith(".") == false;
 	};
 
-	Map<File, Long> getdigestByFileCache() {
-		return digestByFileCache;
-	}
-
 	public AtomicLong getCopiedDatasBytes() {
 		return copiedDatasBytes;
 	}
@@ -88,22 +86,67 @@ public class DestinationEntry extends BaseSourceDestEntry {
 
 		final List<File> actualDirSlots = Arrays.asList(rootPath.listFiles(validDirNonHidden));
 
-		slots.removeIf(slot -> {
-			return actualDirSlots.contains(slot.getDir()) == false;
-		});
-		actualDirSlots.forEach(dir -> {
-			if (slots.stream().map(DestinationEntrySlot::getDir).noneMatch(slotDir -> slotDir.getAbsoluteFile().equals(dir.getAbsoluteFile()))) {
-				slots.add(new DestinationEntrySlot(this, dir));
-			}
-		});
+		synchronized (slots) {
+			slots.removeIf(slot -> {
+				return actualDirSlots.contains(slot.getDir()) == false;
+			});
+			actualDirSlots.forEach(dir -> {
+				if (slots.stream().map(DestinationEntrySlot::getDir).noneMatch(slotDir -> slotDir.getAbsoluteFile().equals(dir.getAbsoluteFile()))) {
+					slots.add(new DestinationEntrySlot(this, dir));
+				}
+			});
 
-		slots.sort((l, r) -> Long.compare(l.getDir().lastModified(), r.getDir().lastModified()));
+			slots.sort((l, r) -> Long.compare(l.getDir().lastModified(), r.getDir().lastModified()));
+		}
 	}
 
+	/**
+	 * Walk the not yet indexed slots before.
+	 * @see DestinationSlotIndex
+	 */
 	public List<File> searchCopyPresence(final String relativePath, final String driveRef) {
-		return slots.stream().map(slot -> {
-			return slot.makePathFromRelativePath(driveRef, relativePath);
-		}).filter(File::exists).collect(Collectors.toUnmodifiableList());
+		return slotIndex.searchPresence(getSlotDirs(), driveRef + File.separator + relativePath);
+	}
+
+	/**
+	 * Blocking: walk again the changed dirs of all the slots, for the files added or removed out of this app.
+	 */
+	public void revalidateSlotsIndex() {
+		slotIndex.update(getSlotDirs(), true);
+	}
+
+	/**
+	 * Changed after each change seen by the slot and content indexes: revalidation, new copy, found copy changed or removed.
+	 * @return only increasing
+	 */
+	public long getIndexesGeneration() {
+		return slotIndex.getGeneration() + contentIndex.getGeneration();
+	}
+
+	/**
+	 * Slots can be added by the FX thread during a search (a copy can start during a scan).
+	 */
+	private List<File> getSlotDirs() {
+		synchronized (slots) {
+			return slots.stream().map(DestinationEntrySlot::getDir).collect(Collectors.toUnmodifiableList());
+		}
+	}
+
+	/**
+	 * Search a copy regardless of its path, by its content. Walk the not yet indexed slots before.
+	 * @see DedupMode
+	 */
+	public Optional<File> searchSameContent(final File source, final DigestIndex digestIndex) {
+		contentIndex.update(getSlotDirs());
+		return contentIndex.searchSameContent(source, digestIndex);
+	}
+
+	/**
+	 * Add a new copy (or link) to the content and slot indexes.
+	 */
+	public void addCopiedFile(final File copy) {
+		contentIndex.add(copy);
+		slotIndex.add(copy);
 	}
 
 	public DestinationEntry prepareNewSessionSlot(final String prefixDirName) {
@@ -120,10 +163,16 @@ public class DestinationEntry extends BaseSourceDestEntry {
 		path.append(slotBaseNameDate.format(System.currentTimeMillis()));
 
 		currentSessionSlot = new DestinationEntrySlot(this, new File(path.toString()));
-		slots.add(currentSessionSlot);
+		synchronized (slots) {
+			slots.add(currentSessionSlot);
+		}
 		return this;
 	}
 
+	public boolean hasCurrentSessionSlot() {
+		return currentSessionSlot != null;
+	}
+
 	public DestinationEntrySlot getCurrentSessionSlot() {
 		Objects.requireNonNull(currentSessionSlot, "\"currentSessionSlot\" can't to be null");
 		return currentSessionSlot;
@@ -26,6 +26,7 @@ import java.nio.file.Path;
 import java.nio.file.StandardOpenOption;
 import java.text.SimpleDateFormat;
 import java.util.Date;
+import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Set;
@@ -75,6 +76,11 @@ public class DestinationEntrySlot {
 		return referer.getCopiedDurationsNanoSec();
 	}
 
+	@Override
+	public String toString() {
+		return slotRootDir.getPath();
+	}
+
 	@Override
 	public int hashCode() {
 		final int prime = 31;
@@ -111,17 +117,22 @@ public class DestinationEntrySlot {
 
 	private static final SimpleDateFormat historyLogDisplay = new SimpleDateFormat("yyyy/MM/dd HH:mm:ss,SSS");
 
+	/**
+	 * Copy operations can run in parallel: keep lines together, and protect the shared date formatter.
+	 */
 	private void writeHistoryLog(final String text, final long date) {
 		final File historyFile = new File(slotRootDir.getPath() + File.separator + "history.log");
 
-		try (final FileChannel logFile = FileChannel.open(historyFile.toPath(), OPEN_OPTIONS_WRITE)) {
-			if (logFile.size() > 0) {
-				logFile.position(logFile.size());
+		synchronized (historyLogDisplay) {
+			try (final FileChannel logFile = FileChannel.open(historyFile.toPath(), OPEN_OPTIONS_WRITE)) {
+				if (logFile.size() > 0) {
+					logFile.position(logFile.size());
+				}
+				logFile.write(ByteBuffer.wrap(historyLogDisplay.format(new Date(date)).concat("\t").getBytes(StandardCharsets.UTF_8)));
+				logFile.write(ByteBuffer.wrap(text.concat(System.lineSeparator()).getBytes(StandardCharsets.UTF_8)));
+			} catch (final IOException e) {
+				log.error("Can't write log history file", e);
 			}
-			logFile.write(ByteBuffer.wrap(historyLogDisplay.format(new Date(date)).concat("\t").getBytes(StandardCharsets.UTF_8)));
-			logFile.write(ByteBuffer.wrap(text.concat(System.lineSeparator()).getBytes(StandardCharsets.UTF_8)));
-		} catch (final IOException e) {
-			log.error("Can't write log history file", e);
 		}
 	}
 
@@ -163,14 +174,21 @@ public class DestinationEntrySlot {
 		writeHistoryLog(sb.toString(), System.currentTimeMillis());
 	}
 
-	public void addComputedDigestToListFile(final File dest, final Map<String, String> digestByAlgorithm) {
+	private String getRelativeDestPath(final File dest) {
 		final var destPath = dest.getAbsolutePath();
 		final var slotDirPath = slotRootDir.getAbsolutePath();
 		if (dest.isDirectory() | dest.exists() == false | dest.equals(slotRootDir) | destPath.startsWith(slotDirPath) == false) {
 			throw new RuntimeException("Invalid file dest: " + dest);
 		}
+		return destPath.substring(slotDirPath.length() + 1).replaceAll("\\\\", "/");
+	}
 
-		final var relativeDestPath = destPath.substring(slotDirPath.length() + 1).replaceAll("\\\\", "/");
+	/**
+	 * Synchronized: some files can be checked in parallel on a same slot.
+	 */
+	public synchronized void addComputedDigestToListFile(final File dest, final Map<String, String> digestByAlgorithm) {
+		final var slotDirPath = slotRootDir.getAbsolutePath();
+		final var relativeDestPath = getRelativeDestPath(dest);
 
 		digestByAlgorithm.forEach((algorithmName, digest) -> {
 			final var digestName = algorithmName.toUpperCase().replaceAll("-", "");
@@ -188,4 +206,35 @@ public class DestinationEntrySlot {
 		});
 	}
 
+	/**
+	 * For tree digests: one line by chunk, like "digest  relative/path@offset", in a "(algorithm)CHUNKS" file.
+	 * Used to check again only a part of a file.
+	 */
+	public synchronized void addComputedChunkDigestsToListFile(final File dest, final Map<String, List<String>> chunkDigestsByAlgorithm, final long chunkSize) {
+		final var slotDirPath = slotRootDir.getAbsolutePath();
+		final var relativeDestPath = getRelativeDestPath(dest);
+
+		chunkDigestsByAlgorithm.forEach((algorithmName, chunkDigests) -> {
+			final var digestName = algorithmName.toUpperCase().replaceAll("-", "");
+			final var digestToListFile = Path.of(slotDirPath, digestName + "CHUNKS");
+
+			final var lines = new StringBuilder();
+			for (int pos = 0; pos < chunkDigests.size(); pos++) {
+				lines.append(chunkDigests.get(pos)).append("  ").append(relativeDestPath).append("@").append(pos * chunkSize).append("\n");
+			}
+
+			try (final FileChannel logFile = FileChannel.open(digestToListFile, OPEN_OPTIONS_WRITE)) {
+				if (logFile.size() > 0) {
+					logFile.position(logFile.size());
+				}
+				final var buffer = ByteBuffer.wrap(lines.toString().getBytes(StandardCharsets.UTF_8));
+				while (buffer.hasRemaining()) {
+					logFile.write(buffer);
+				}
+			} catch (final IOException e) {
+				log.error("Can't write chunk digest list file", e);
+			}
+		});
+	}
+
 }
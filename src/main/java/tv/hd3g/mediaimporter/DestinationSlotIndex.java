@@ -0,0 +1,278 @@
+/*
+ * This file is part of mediaimporter.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * Copyright (C) hdsdi3g for hd3g.tv 2019
+ *
+*/
+package tv.hd3g.mediaimporter;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.DirectoryIteratorException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * The file trees of the slots of a destination, for the copy presence searches: a search is a hash lookup by slot, without file system access.
+ * A slot is walked in parallel on its first search. After that, only a revalidation walks it again: a dir with the same modification date is not listed again.
+ * Copies are added after each copy, and a found file with another size or date than the indexed one is updated.
+ * Each seen change (listed dir, removed slot, added or updated file) increments the generation.
+ * Thread safe.
+ */
+class DestinationSlotIndex {
+	private static Logger log = LogManager.getLogger();
+
+	/**
+	 * By slot dir, by dir path
+	 */
+	private final ConcurrentHashMap<Path, Map<Path, IndexedDir>> treeBySlotDir;
+	private final AtomicLong generation;
+
+	DestinationSlotIndex() {
+		treeBySlotDir = new ConcurrentHashMap<>();
+		generation = new AtomicLong();
+	}
+
+	/**
+	 * @return only increasing, changed after each change seen by this index
+	 */
+	long getGeneration() {
+		return generation.get();
+	}
+
+	private static class IndexedFile {
+		private final long size;
+		private final long mtime;
+
+		private IndexedFile(final long size, final long mtime) {
+			this.size = size;
+			this.mtime = mtime;
+		}
+	}
+
+	private static class IndexedDir {
+		private final long mtime;
+		private final long listedDate;
+		private final List<Path> subDirs;
+		private final ConcurrentHashMap<String, IndexedFile> fileByName;
+
+		private IndexedDir(final long mtime, final long listedDate, final List<Path> subDirs) {
+			this.mtime = mtime;
+			this.listedDate = listedDate;
+			this.subDirs = subDirs;
+			fileByName = new ConcurrentHashMap<>();
+		}
+	}
+
+	/**
+	 * Walk the not indexed slots, and forget the removed slots.
+	 * @param revalidate walk again the already indexed slots, only for the changed dirs
+	 */
+	synchronized void update(final List<File> slotDirs, final boolean revalidate) {
+		final Set<Path> actualSlotDirs = slotDirs.stream().map(dir -> dir.getAbsoluteFile().toPath()).collect(Collectors.toUnmodifiableSet());
+		if (treeBySlotDir.keySet().removeIf(slotDir -> actualSlotDirs.contains(slotDir) == false)) {
+			generation.incrementAndGet();
+		}
+
+		actualSlotDirs.forEach(slotDir -> {
+			final Map<Path, IndexedDir> previous = treeBySlotDir.get(slotDir);
+			if (previous != null && revalidate == false) {
+				return;
+			}
+			log.debug("Index slot tree of {}", slotDir);
+			final ConcurrentHashMap<Path, IndexedDir> tree = new ConcurrentHashMap<>();
+			try {
+				final BasicFileAttributes attributes = Files.readAttributes(slotDir, BasicFileAttributes.class);
+				SourceWalker.walkPool.invoke(new DirectoryWalk(slotDir, attributes.lastModifiedTime().toMillis(), previous == null ? Map.of() : previous, tree, generation));
+			} catch (final NoSuchFileException e) {
+				/**
+				 * New session slot, not yet created.
+				 */
+			} catch (final IOException e) {
+				log.warn("Can't index slot tree of " + slotDir, e);
+			}
+			treeBySlotDir.put(slotDir, tree);
+		});
+	}
+
+	/**
+	 * Only walk the not indexed slots.
+	 */
+	private void updateIfNeeded(final List<File> slotDirs) {
+		if (slotDirs.stream().allMatch(slotDir -> treeBySlotDir.containsKey(slotDir.getAbsoluteFile().toPath()))) {
+			return;
+		}
+		update(slotDirs, false);
+	}
+
+	/**
+	 * Only the found files are checked on the file system.
+	 * @return in the slotDirs order
+	 */
+	List<File> searchPresence(final List<File> slotDirs, final String relativeSlotPath) {
+		updateIfNeeded(slotDirs);
+
+		final List<File> result = new ArrayList<>(1);
+		slotDirs.forEach(slotDir -> {
+			final Path slotPath = slotDir.getAbsoluteFile().toPath();
+			final Map<Path, IndexedDir> tree = treeBySlotDir.get(slotPath);
+			if (tree == null) {
+				return;
+			}
+			final Path path = slotPath.resolve(relativeSlotPath).normalize();
+			final IndexedDir dir = tree.get(path.getParent());
+			if (dir == null) {
+				return;
+			}
+			final String name = path.getFileName().toString();
+			final IndexedFile indexedFile = dir.fileByName.get(name);
+			if (indexedFile == null) {
+				return;
+			}
+			check(path).ifPresentOrElse(actualFile -> {
+				if (actualFile.size != indexedFile.size || actualFile.mtime != indexedFile.mtime) {
+					dir.fileByName.put(name, actualFile);
+					generation.incrementAndGet();
+				}
+				result.add(path.toFile());
+			}, () -> {
+				dir.fileByName.remove(name);
+				generation.incrementAndGet();
+			});
+		});
+		return result;
+	}
+
+	/**
+	 * Add a new copy (or link, or clone), if its slot is indexed.
+	 */
+	void add(final File copy) {
+		final Path path = copy.getAbsoluteFile().toPath();
+		treeBySlotDir.forEach((slotDir, tree) -> {
+			if (path.startsWith(slotDir) == false) {
+				return;
+			}
+			check(path).ifPresent(actualFile -> {
+				/**
+				 * -1: a dir first seen here will be listed on the next revalidation.
+				 */
+				tree.computeIfAbsent(path.getParent(), dir -> new IndexedDir(-1, -1, List.of())).fileByName.put(path.getFileName().toString(), actualFile);
+				generation.incrementAndGet();
+			});
+		});
+	}
+
+	private static Optional<IndexedFile> check(final Path path) {
+		try {
+			final BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+			if (attributes.isRegularFile() == false) {
+				return Optional.empty();
+			}
+			return Optional.of(new IndexedFile(attributes.size(), attributes.lastModifiedTime().toMillis()));
+		} catch (final IOException e) {
+			return Optional.empty();
+		}
+	}
+
+	private static class DirectoryWalk extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+
+		private final Path dir;
+		private final long mtime;
+		private final Map<Path, IndexedDir> previousTree;
+		private final ConcurrentHashMap<Path, IndexedDir> tree;
+		private final AtomicLong generation;
+
+		private DirectoryWalk(final Path dir, final long mtime, final Map<Path, IndexedDir> previousTree, final ConcurrentHashMap<Path, IndexedDir> tree, final AtomicLong generation) {
+			this.dir = dir;
+			this.mtime = mtime;
+			this.previousTree = previousTree;
+			this.tree = tree;
+			this.generation = generation;
+		}
+
+		@Override
+		protected void compute() {
+			final IndexedDir previous = previousTree.get(dir);
+			if (previous != null && previous.mtime == mtime && mtime < previous.listedDate - SourceWalker.MTIME_PRECISION_MSEC) {
+				/**
+				 * Same dir content: only check the known sub dirs.
+				 */
+				tree.put(dir, previous);
+				invokeAll(previous.subDirs.stream().map(subDir -> {
+					try {
+						final BasicFileAttributes attributes = Files.readAttributes(subDir, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+						if (attributes.isDirectory()) {
+							return new DirectoryWalk(subDir, attributes.lastModifiedTime().toMillis(), previousTree, tree, generation);
+						}
+					} catch (final IOException e) {
+						log.debug("Can't read attributes for {}: {}", subDir, e);
+					}
+					return null;
+				}).filter(walk -> walk != null).collect(Collectors.toUnmodifiableList()));
+				return;
+			}
+
+			final long listedDate = System.currentTimeMillis();
+			final List<DirectoryWalk> subDirs = new ArrayList<>();
+			final List<Path> subDirPaths = new ArrayList<>();
+			final ConcurrentHashMap<String, IndexedFile> fileByName = new ConcurrentHashMap<>();
+
+			try (final DirectoryStream<Path> content = Files.newDirectoryStream(dir)) {
+				for (final Path path : content) {
+					final BasicFileAttributes attributes;
+					try {
+						attributes = Files.readAttributes(path, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+					} catch (final IOException e) {
+						log.warn("Can't read attributes for " + path, e);
+						continue;
+					}
+					if (attributes.isDirectory()) {
+						subDirs.add(new DirectoryWalk(path, attributes.lastModifiedTime().toMillis(), previousTree, tree, generation));
+						subDirPaths.add(path);
+					} else if (attributes.isRegularFile()) {
+						fileByName.put(path.getFileName().toString(), new IndexedFile(attributes.size(), attributes.lastModifiedTime().toMillis()));
+					}
+				}
+				final IndexedDir indexedDir = new IndexedDir(mtime, listedDate, List.copyOf(subDirPaths));
+				indexedDir.fileByName.putAll(fileByName);
+				tree.put(dir, indexedDir);
+				/**
+				 * A listed dir is a new or a changed dir.
+				 */
+				generation.incrementAndGet();
+			} catch (final IOException | DirectoryIteratorException e) {
+				log.warn("Can't walk in " + dir, e);
+			}
+
+			invokeAll(subDirs);
+		}
+	}
+
+}
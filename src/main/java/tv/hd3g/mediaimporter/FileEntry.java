@@ -18,6 +18,8 @@ package tv.hd3g.mediaimporter;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -27,8 +29,9 @@ import java.util.function.Predicate;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
-import org.apache.commons.io.FileUtils;
 import org.apache.commons.lang3.time.DurationFormatUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
 
 import javafx.beans.property.ReadOnlyLongWrapper;
 import javafx.beans.property.ReadOnlyObjectWrapper;
@@ -37,31 +40,41 @@ import javafx.beans.value.ObservableValue;
 import javafx.scene.control.TableColumn.CellDataFeatures;
 import javafx.util.Callback;
 import tv.hd3g.mediaimporter.io.IntegrityAllState;
+import tv.hd3g.mediaimporter.tools.DigestIndex;
 
 public class FileEntry implements TargetedFileEntries {
+	private static Logger log = LogManager.getLogger();
 
 	private static final long maxFileSizeDigestCompute = 30_000;
+	private static final DedupMode dedupMode = DedupMode.getFromConfig();
 
 	private final SourceEntry source;
 	private final File file;
 	private final SimpleStringProperty status;
 	private final Map<DestinationEntry, CopiedFileReference> copiesByDestination;
+	private final Map<DestinationEntry, File> sameContentByDestination;
 	private final String relativePath;
 	private final List<DestinationEntry> destsList;
-	private final Map<File, Long> digestByFileCache;
+	private final DigestIndex digestIndex;
 
 	private IOException lastCopyError;
 	private volatile FileEntryStatus currentResumeStatus;
-	private String computedDigest;
+	private volatile Map<String, String> computedDigests;
 	private IntegrityAllState integrityAllStates;
+	private volatile long lastStateSize;
+	private volatile long lastStateModified;
+	private volatile List<DestinationEntry> lastStateDestinations;
+	private volatile long lastStateIndexesGeneration;
+	private volatile List<CopiedFileReference> lastStateCopies;
 
-	public FileEntry(final SourceEntry source, final File file, final List<DestinationEntry> destsList, final Map<File, Long> digestByFileCache) {
+	public FileEntry(final SourceEntry source, final File file, final List<DestinationEntry> destsList, final DigestIndex digestIndex) {
 		this.source = Objects.requireNonNull(source, "\"source\" can't to be null");
 		this.file = Objects.requireNonNull(file, "\"file\" can't to be null");
-		this.digestByFileCache = Objects.requireNonNull(digestByFileCache, "\"digestByFileCache\" can't to be null");
+		this.digestIndex = Objects.requireNonNull(digestIndex, "\"digestIndex\" can't to be null");
 
 		status = new SimpleStringProperty();
 		copiesByDestination = new HashMap<>();
+		sameContentByDestination = new HashMap<>();
 
 		if (source.rootPath.getParentFile() == null) {
 			/**
@@ -76,72 +89,193 @@ public class FileEntry implements TargetedFileEntries {
 		}
 		this.destsList = destsList;
 		currentResumeStatus = FileEntryStatus.NOT_STARTED;
-		computedDigest = "";
+		computedDigests = Map.of();
 		integrityAllStates = IntegrityAllState.NOT_CHECKED;
+		lastStateSize = -1;
+		lastStateModified = -1;
+		lastStateDestinations = List.of();
+		lastStateIndexesGeneration = -1;
+		lastStateCopies = List.of();
 	}
 
 	public String getDriveReference() {
 		return source.getSystemDisplayName().replaceAll("\\(", "").replaceAll("\\)", "").replaceAll(":", "").replaceAll("//", "").replaceAll("\\\\", "").replaceAll(" ", "_");
 	}
 
-	public void addDestination(final DestinationEntry destination) {
+	/**
+	 * Search a copy of this file on a destination, blocking (file reads). Don't change this FileEntry.
+	 */
+	private void probeDestination(final DestinationEntry destination, final Map<DestinationEntry, CopiedFileReference> copies, final Map<DestinationEntry, File> sameContents) {
 		final List<File> foundedPotential = destination.searchCopyPresence(relativePath, getDriveReference());
 
-		foundedPotential.stream().filter(potentialFile -> file.length() == potentialFile.length()).filter(potentialFile -> {
+		final Optional<File> copy = foundedPotential.stream().filter(potentialFile -> file.length() == potentialFile.length()).filter(potentialFile -> {
 			if (potentialFile.length() < maxFileSizeDigestCompute) {
-				final long potentialFileDigest = destination.getdigestByFileCache().computeIfAbsent(potentialFile, f -> {
-					try {
-						return FileUtils.checksumCRC32(f);
-					} catch (final IOException e) {
-						throw new RuntimeException("Can't read " + f.getPath(), e);
-					}
-				});
-				final long sourceFileDigest = digestByFileCache.computeIfAbsent(file, f -> {
-					try {
-						return FileUtils.checksumCRC32(f);
-					} catch (final IOException e) {
-						throw new RuntimeException("Can't read " + f.getPath(), e);
-					}
-				});
-				return potentialFileDigest == sourceFileDigest;
+				return digestIndex.getCRC32(potentialFile) == digestIndex.getCRC32(file);
 			}
-			return true;
-		}).findFirst().ifPresentOrElse(copy -> {
-			if (copiesByDestination.containsKey(destination)) {
-				if (copiesByDestination.get(destination).equalsNotChanged(file)) {
-					return;
+			/**
+			 * Don't read all the big files, only some samples.
+			 */
+			return digestIndex.getSampledFingerprint(potentialFile).equals(digestIndex.getSampledFingerprint(file));
+		}).findFirst();
+
+		if (copy.isPresent()) {
+			copies.put(destination, new CopiedFileReference(copy.get()));
+			return;
+		}
+
+		/**
+		 * Not copied here, but maybe copied elsewhere on this destination (another slot, prefix or drive reference).
+		 */
+		if (dedupMode != DedupMode.OFF) {
+			destination.searchSameContent(file, digestIndex).ifPresent(sameContent -> {
+				if (dedupMode == DedupMode.SKIP) {
+					copies.put(destination, new CopiedFileReference(sameContent));
+				} else {
+					sameContents.put(destination, sameContent);
 				}
+			});
+		}
+	}
+
+	/**
+	 * The result of a probe on this file for a new destination, to apply on the FX thread.
+	 */
+	public final class ProbedDestination {
+		private final DestinationEntry destination;
+		private final Map<DestinationEntry, CopiedFileReference> copies;
+		private final Map<DestinationEntry, File> sameContents;
+
+		private ProbedDestination(final DestinationEntry destination) {
+			this.destination = destination;
+			final Map<DestinationEntry, CopiedFileReference> probedCopies = new HashMap<>();
+			final Map<DestinationEntry, File> probedSameContents = new HashMap<>();
+			probeDestination(destination, probedCopies, probedSameContents);
+			copies = Collections.unmodifiableMap(probedCopies);
+			sameContents = Collections.unmodifiableMap(probedSameContents);
+		}
+	}
+
+	/**
+	 * Blocking, can run out of the FX thread: it don't change this FileEntry.
+	 */
+	public ProbedDestination probeNewDestination(final DestinationEntry destination) {
+		return new ProbedDestination(destination);
+	}
+
+	/**
+	 * Only on the FX thread for a FileEntry in the file list.
+	 */
+	public void addDestination(final ProbedDestination probedDestination) {
+		final DestinationEntry destination = probedDestination.destination;
+		final CopiedFileReference actualCopy = copiesByDestination.get(destination);
+		final CopiedFileReference newCopy = probedDestination.copies.get(destination);
+		if (actualCopy != null && newCopy != null && actualCopy.equalsNotChanged(newCopy.copy)) {
+			return;
+		}
+		copiesByDestination.remove(destination);
+		sameContentByDestination.remove(destination);
+		copiesByDestination.putAll(probedDestination.copies);
+		sameContentByDestination.putAll(probedDestination.sameContents);
+		updateStatus();
+	}
+
+	/**
+	 * The result of a probe on this file and on all the destinations, to apply on the FX thread.
+	 */
+	public final class ProbedState {
+		private final boolean removed;
+		private final long size;
+		private final long modified;
+		private final List<DestinationEntry> destinations;
+		private final long indexesGeneration;
+		private final Map<DestinationEntry, CopiedFileReference> copies;
+		private final Map<DestinationEntry, File> sameContents;
+
+		private ProbedState(final List<DestinationEntry> destinations) {
+			this.destinations = destinations;
+			/**
+			 * Before the probe: a change seen during the probe will be probed again the next time.
+			 */
+			indexesGeneration = getIndexesGeneration(destinations);
+			removed = file.exists() == false;
+			size = file.length();
+			modified = file.lastModified();
+
+			final Map<DestinationEntry, CopiedFileReference> probedCopies = new HashMap<>();
+			final Map<DestinationEntry, File> probedSameContents = new HashMap<>();
+			if (removed == false) {
+				destinations.forEach(destination -> {
+					probeDestination(destination, probedCopies, probedSameContents);
+				});
 			}
-			copiesByDestination.put(destination, new CopiedFileReference(copy));
-			updateStatus();
-		}, () -> {
-			if (copiesByDestination.containsKey(destination)) {
-				copiesByDestination.remove(destination);
-			}
-			updateStatus();
-		});
+			copies = Collections.unmodifiableMap(probedCopies);
+			sameContents = Collections.unmodifiableMap(probedSameContents);
+		}
+	}
+
+	/**
+	 * Blocking, can run out of the FX thread: it don't change this FileEntry (see applyState).
+	 * @param destinations a copy of the destination list, done on the FX thread
+	 * @return empty if this file, the destination list, the destination indexes and the found copies have not changed since the last applied state
+	 */
+	public Optional<ProbedState> probeStateIfChanged(final List<DestinationEntry> destinations) {
+		if (file.length() == lastStateSize && file.lastModified() == lastStateModified && destinations.equals(lastStateDestinations) && getIndexesGeneration(destinations) == lastStateIndexesGeneration && lastStateCopies.stream().allMatch(CopiedFileReference::isNotChanged)) {
+			return Optional.empty();
+		}
+		return Optional.of(new ProbedState(List.copyOf(destinations)));
 	}
 
 	/**
+	 * Like probeStateIfChanged, always probed.
+	 * @param destinations a copy of the destination list, done on the FX thread
+	 */
+	public ProbedState probeState(final List<DestinationEntry> destinations) {
+		return new ProbedState(List.copyOf(destinations));
+	}
+
+	/**
+	 * Copies added, removed or changed out of this app are seen by the destination indexes (see DestinationEntry.revalidateSlotsIndex).
+	 */
+	private static long getIndexesGeneration(final List<DestinationEntry> destinations) {
+		return destinations.stream().mapToLong(DestinationEntry::getIndexesGeneration).sum();
+	}
+
+	/**
+	 * On the FX thread.
 	 * @return true for remove
 	 */
-	public boolean updateState() {
-		if (file.exists() == false) {
+	public boolean applyState(final ProbedState probedState) {
+		if (probedState.removed) {
 			return true;
 		}
 		copiesByDestination.clear();
-		destsList.forEach(destination -> {
-			addDestination(destination);
-		});
+		sameContentByDestination.clear();
+		copiesByDestination.putAll(probedState.copies);
+		sameContentByDestination.putAll(probedState.sameContents);
+		lastStateSize = probedState.size;
+		lastStateModified = probedState.modified;
+		lastStateDestinations = probedState.destinations;
+		lastStateIndexesGeneration = probedState.indexesGeneration;
+		lastStateCopies = List.copyOf(probedState.copies.values());
+		updateStatus();
 		return false;
 	}
 
 	public void removeDestination(final DestinationEntry oldDestination) {
+		sameContentByDestination.remove(oldDestination);
 		if (copiesByDestination.remove(oldDestination) != null) {
 			updateStatus();
 		}
 	}
 
+	/**
+	 * Only with DedupMode.HARDLINK
+	 * @return a file with the same content, elsewhere on this destination
+	 */
+	public Optional<File> getSameContentCopy(final DestinationEntry destination) {
+		return Optional.ofNullable(sameContentByDestination.get(destination));
+	}
+
 	public SourceEntry getSource() {
 		return source;
 	}
@@ -153,10 +287,21 @@ public class FileEntry implements TargetedFileEntries {
 	private class CopiedFileReference {
 		private final File copy;
 		private final boolean sameSize;
+		private final long copyLength;
+		private final long copyModified;
 
 		private CopiedFileReference(final File copy) {
 			this.copy = Objects.requireNonNull(copy, "\"copy\" can't to be null");
-			sameSize = file.length() == copy.length();
+			copyLength = copy.length();
+			copyModified = copy.lastModified();
+			sameSize = file.length() == copyLength;
+		}
+
+		/**
+		 * A copy changed in place (corrupted, truncated) don't change its dir: it's not seen by the destination indexes.
+		 */
+		boolean isNotChanged() {
+			return copy.length() == copyLength && copy.lastModified() == copyModified;
 		}
 
 		boolean equalsNotChanged(final File candidate) {
@@ -332,12 +477,45 @@ public class FileEntry implements TargetedFileEntries {
 		return Stream.concat(sourceEntry, destEntries).collect(Collectors.toUnmodifiableList());
 	}
 
-	public void setDigest(final String computedDigest) {
-		this.computedDigest = computedDigest;
+	/**
+	 * @param computedDigests digest by algorithm name (see MainClass.DIGEST_NAMES), empty if not computed
+	 */
+	public void setDigests(final Map<String, String> computedDigests) {
+		this.computedDigests = Objects.requireNonNull(computedDigests, "\"computedDigests\" can't to be null");
+		/**
+		 * The digest index is only a cache: it must never fail a copy.
+		 */
+		try {
+			digestIndex.put(file, computedDigests);
+		} catch (final RuntimeException e) {
+			log.warn("Can't store digests for " + file, e);
+		}
+	}
+
+	/**
+	 * For the next content searches on the copy destination (see DestinationContentIndex).
+	 * @param copyDigests digest by algorithm name, read from a copy of this file
+	 */
+	public void setCopyDigests(final File copy, final Map<String, String> copyDigests) {
+		try {
+			digestIndex.put(copy, copyDigests);
+		} catch (final RuntimeException e) {
+			log.warn("Can't store digests for " + copy, e);
+		}
 	}
 
-	public String getDigest() {
-		return computedDigest;
+	/**
+	 * If not computed during this session, try to get it from the digest index (only if the source file has not changed).
+	 * @return empty if not computed
+	 */
+	public Map<String, String> getDigests() {
+		if (computedDigests.isEmpty()) {
+			final Map<String, String> stored = digestIndex.get(file);
+			if (Arrays.stream(MainClass.DIGEST_NAMES).allMatch(stored::containsKey)) {
+				computedDigests = Arrays.stream(MainClass.DIGEST_NAMES).collect(Collectors.toUnmodifiableMap(name -> name, stored::get));
+			}
+		}
+		return computedDigests;
 	}
 
 	public synchronized void setAllCopiesIntegrity(final IntegrityAllState integrityAllStates) {
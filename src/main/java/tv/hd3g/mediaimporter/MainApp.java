@@ -19,11 +19,13 @@ package tv.hd3g.mediaimporter;
 import java.io.File;
 import java.io.IOException;
 import java.text.DecimalFormat;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.LongSummaryStatistics;
+import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
 import java.util.concurrent.CompletableFuture;
-import java.util.concurrent.ConcurrentHashMap;
 import java.util.function.Consumer;
 import java.util.function.Supplier;
 import java.util.stream.Collectors;
@@ -43,6 +45,7 @@ import javafx.scene.image.Image;
 import javafx.scene.input.TransferMode;
 import javafx.scene.layout.BorderPane;
 import javafx.stage.Stage;
+import tv.hd3g.mediaimporter.FileEntry.ProbedState;
 import tv.hd3g.mediaimporter.io.CanBeStopped;
 import tv.hd3g.mediaimporter.io.CopyFilesEngine;
 import tv.hd3g.mediaimporter.io.IntegrityCheckEngine;
@@ -64,6 +67,7 @@ public class MainApp extends Application implements UIProgresser, UIMainPanelPro
 	}
 
 	private SimpleObjectProperty<CanBeStopped> currentCopyEngine;
+	private SourcesScan currentScan;
 	private MainPanel mainPanel;
 	private Stage stage;
 	private Image appIcon;
@@ -77,7 +81,6 @@ public class MainApp extends Application implements UIProgresser, UIMainPanelPro
 	@Override
 	public void start(final Stage primaryStage) {
 		final var fileSanity = FileSanity.get();
-		final var digestByFileCache = new ConcurrentHashMap<File, Long>();
 		currentCopyEngine = new SimpleObjectProperty<>(null);
 
 		stage = primaryStage;
@@ -100,7 +103,7 @@ public class MainApp extends Application implements UIProgresser, UIMainPanelPro
 			stage.getIcons().add(appIcon);
 			// image_tasks = new Image(getClass().getResourceAsStream("tasks.png"), 10, 10, false, false);
 
-			store = new ConfigurationStore("mediaimporter", sourcesList, destsList, mainPanel.getInputPrefixDirName(), fileSanity, digestByFileCache);
+			store = new ConfigurationStore("mediaimporter", sourcesList, destsList, mainPanel.getInputPrefixDirName(), fileSanity);
 
 			/**
 			 * Get last preferencies and set to controls
@@ -112,7 +115,7 @@ public class MainApp extends Application implements UIProgresser, UIMainPanelPro
 				}
 				store.getConfigDoubleValue(c.getId() + ".width").ifPresent(c::setPrefWidth);
 			};
-			mainPanel.prepareTableSources(setColWidthFromConfig, stage, file -> new SourceEntry(file, fileSanity, digestByFileCache));
+			mainPanel.prepareTableSources(setColWidthFromConfig, stage, file -> new SourceEntry(file, fileSanity, store.getDigestIndex(), store.getSourceSnapshotStore()));
 			mainPanel.prepareTableDestinations(setColWidthFromConfig, stage);
 			mainPanel.prepareTableFiles(setColWidthFromConfig);
 
@@ -121,6 +124,8 @@ public class MainApp extends Application implements UIProgresser, UIMainPanelPro
 			store.getConfigDoubleValue("primaryStage.x").ifPresent(stage::setX);
 			store.getConfigDoubleValue("primaryStage.y").ifPresent(stage::setY);
 			store.getConfigValue("CBCheckAfterCopy").map(Boolean::parseBoolean).or(() -> Optional.of(true)).ifPresent(mainPanel.getCBCheckAfterCopy()::setSelected);
+			store.getConfigValue("CBWatchSources").map(Boolean::parseBoolean).ifPresent(mainPanel.getCBWatchSources()::setSelected);
+			store.getConfigValue("CBAutoCopy").map(Boolean::parseBoolean).ifPresent(mainPanel.getCBAutoCopy()::setSelected);
 
 			stage.setScene(scene);
 			stage.setTitle(System.getProperty("javappackager.appname", "Media importer"));
@@ -156,6 +161,30 @@ public class MainApp extends Application implements UIProgresser, UIMainPanelPro
 				}
 			});
 
+			/**
+			 * Watch mode: new files are added to the file list, and copied if auto copy is selected.
+			 */
+			mainPanel.getCBAutoCopy().setDisable(mainPanel.getCBWatchSources().isSelected() == false);
+			mainPanel.getCBWatchSources().selectedProperty().addListener((observable, oldValue, newValue) -> {
+				mainPanel.getCBAutoCopy().setDisable(newValue == false);
+				if (newValue) {
+					sourcesList.forEach(this::startWatch);
+				} else {
+					sourcesList.forEach(SourceEntry::stopWatch);
+				}
+			});
+			sourcesList.addListener((ListChangeListener<SourceEntry>) change -> {
+				while (change.next()) {
+					change.getRemoved().forEach(SourceEntry::stopWatch);
+					if (mainPanel.getCBWatchSources().isSelected()) {
+						change.getAddedSubList().forEach(this::startWatch);
+					}
+				}
+			});
+			if (mainPanel.getCBWatchSources().isSelected()) {
+				sourcesList.forEach(this::startWatch);
+			}
+
 			/**
 			 * initDestZone
 			 */
@@ -194,49 +223,84 @@ public class MainApp extends Application implements UIProgresser, UIMainPanelPro
 
 			mainPanel.getBtnAddSourceToScan().setOnAction(event -> {
 				event.consume();
+				if (currentScan != null) {
+					log.info("Manual stop scan action");
+					currentScan.stop();
+					mainPanel.getBtnAddSourceToScan().setDisable(true);
+					return;
+				}
 				if (sourcesList.isEmpty()) {
 					return;
 				}
 				log.info("Start scan source dirs");
 				mainPanel.getBtnClearScanlist().setDisable(true);
+				sourcesList.forEach(SourceEntry::updateColsDriveType);
+
+				final Set<FileEntry> actualFileEntrySet = fileList.stream().distinct().collect(Collectors.toSet());
+				if (fileList.size() != actualFileEntrySet.size()) {
+					/**
+					 * Remove duplicate entries.
+					 */
+					fileList.clear();
+					fileList.addAll(actualFileEntrySet);
+				}
 
-				fileList.removeIf(fileEntry -> {
-					return fileEntry.updateState();
-				});
-
-				digestByFileCache.clear();
+				/**
+				 * The scan run in background: the button can cancel it.
+				 */
+				final SourcesScan scan = new SourcesScan(sourcesList, destsList, fileList);
+				currentScan = scan;
+				setSourceDestButtonsDisabled(true);
+				final String btnScanText = mainPanel.getBtnAddSourceToScan().getText();
+				mainPanel.getBtnAddSourceToScan().setText(Messages.getString("btnCancelScan"));
+				mainPanel.getBtnAddSourceToScan().setDisable(false);
+				if (currentCopyEngine.isNull().get()) {
+					mainPanel.getLblProgressionCounter().setText(String.format(Messages.getString("labelProgressScan"), 0, MainApp.byteCountToDisplaySizeWithPrecision(0)));
+				}
 
-				sourcesList.forEach(entry -> {
-					try {
-						final List<FileEntry> newFilesEntries = entry.scanSource(fileList, destsList);
+				scan.asyncStart(newFileEntries -> {
+					/**
+					 * Some files may have been added by the watch mode during the scan.
+					 */
+					final Set<FileEntry> actualFileEntries = Set.copyOf(fileList);
+					fileList.addAll(newFileEntries.stream().filter(newFileEntry -> actualFileEntries.contains(newFileEntry) == false).collect(Collectors.toUnmodifiableList()));
+					if (currentCopyEngine.isNull().get()) {
+						mainPanel.getLblProgressionCounter().setText(String.format(Messages.getString("labelProgressScan"), scan.getFoundedFiles(), MainApp.byteCountToDisplaySizeWithPrecision(scan.getFoundedBytes())));
+					}
+				}, removedFileEntries -> {
+					if (removedFileEntries.isEmpty() == false) {
+						final Set<FileEntry> toRemove = Set.copyOf(removedFileEntries);
+						fileList.removeIf(toRemove::contains);
+					}
+				}).whenComplete((v, e) -> {
+					Platform.runLater(() -> {
+						currentScan = null;
+						mainPanel.getBtnAddSourceToScan().setText(btnScanText);
+						setSourceDestButtonsDisabled(currentCopyEngine.isNotNull().get());
+						mainPanel.getBtnAddSourceToScan().setDisable(currentCopyEngine.isNotNull().get() | isBtnAddSourceToScanDisabled.get());
 
-						if (newFilesEntries.isEmpty() == false) {
-							log.info("Found " + newFilesEntries.size() + " new file(s), start update copies references");
-							destsList.forEach(destination -> {
-								newFilesEntries.forEach(newFileEntry -> {
-									newFileEntry.addDestination(destination);
-								});
-							});
+						if (e != null) {
+							log4javaFx.error("Can't scan sources", e);
 						}
+						scan.getScanErrors().forEach(scanError -> {
+							log4javaFx.error("Can't scan source", scanError);
+						});
 
 						fileList.sort((l, r) -> {
 							return l.getFile().compareTo(r.getFile());
 						});
-					} catch (final IOException e) {
-						MainApp.log4javaFx.error("Can't scan " + entry, e);
-					}
-				});
-
-				final LongSummaryStatistics stats = fileList.stream().filter(FileEntry.needsToBeCopied).mapToLong(fileEntry -> fileEntry.getFile().length()).summaryStatistics();
-				if (stats.getCount() > 0) {
-					final String label = String.format(Messages.getString("labelProgressReady"), stats.getCount(), MainApp.byteCountToDisplaySizeWithPrecision(stats.getSum()));
-					mainPanel.getLblProgressionCounter().setText(label);
-					mainPanel.getBtnStartCopy().setDisable(false);
-				}
-
-				mainPanel.getBtnClearScanlist().setDisable(fileList.isEmpty());
 
-				new StatusMsgBox(fileList, appIcon).showAndWait();
+						if (currentCopyEngine.isNotNull().get()) {
+							mainPanel.getBtnClearScanlist().setDisable(true);
+							return;
+						}
+						mainPanel.getLblProgressionCounter().setText("");
+						updateReadyToCopy();
+						if (scan.isStopped() == false && isWatchAutoCopy() == false) {
+							new StatusMsgBox(fileList, appIcon).showAndWait();
+						}
+					});
+				});
 			});
 
 			mainPanel.getBtnClearScanlist().setOnAction(event -> {
@@ -258,7 +322,14 @@ public class MainApp extends Application implements UIProgresser, UIMainPanelPro
 					return;
 				}
 
+				final boolean autoCopy = isWatchAutoCopy();
 				destsList.forEach(dest -> {
+					if (autoCopy && dest.hasCurrentSessionSlot()) {
+						/**
+						 * All the auto copies of a watch session go to the same slot.
+						 */
+						return;
+					}
 					dest.prepareNewSessionSlot(mainPanel.getInputPrefixDirName().getText());
 				});
 
@@ -268,41 +339,55 @@ public class MainApp extends Application implements UIProgresser, UIMainPanelPro
 				mainPanel.getBtnRemoveSourceDir().setDisable(true);
 				mainPanel.getBtnAddDestinationDir().setDisable(true);
 				mainPanel.getBtnRemoveDestinationDir().setDisable(true);
-				mainPanel.getBtnAddSourceToScan().setDisable(true);
+				/**
+				 * A running scan can still be cancelled.
+				 */
+				mainPanel.getBtnAddSourceToScan().setDisable(currentScan == null);
 				mainPanel.getInputPrefixDirName().setDisable(true);
 				mainPanel.getBtnStartCopy().setDisable(true);
 				mainPanel.getBtnStopCopy().setDisable(false);
 				mainPanel.getProgressBar().setProgress(-1);
 
 				try {
-					final CopyFilesEngine copyFilesEngine = new CopyFilesEngine(fileList, destsList, this);
-					currentCopyEngine.set(copyFilesEngine);
+					final List<FileEntry> fileEntries = List.copyOf(fileList);
+					final List<DestinationEntry> destinations = List.copyOf(destsList);
+					final CopyFilesEngine copyFilesEngine = new CopyFilesEngine(fileEntries, destinations, this);
+					final IntegrityCheckEngine ice;
+					if (mainPanel.getCBCheckAfterCopy().isSelected()) {
+						/**
+						 * Each copied file is checked during the next copies, while it's still in the OS cache.
+						 */
+						ice = new IntegrityCheckEngine();
+						copyFilesEngine.setOnCopyDone(ice::add);
+						currentCopyEngine.set(onDone -> {
+							copyFilesEngine.asyncStop(() -> {
+								ice.asyncStop(onDone);
+							});
+						});
+					} else {
+						ice = null;
+						currentCopyEngine.set(copyFilesEngine);
+					}
 
 					copyFilesEngine.asyncStart().thenCompose(copiedList -> {
-						final boolean checkAfterCopy = mainPanel.getCBCheckAfterCopy().isSelected();
-
-						if (checkAfterCopy) {
+						if (ice != null) {
 							Platform.runLater(() -> {
 								mainPanel.getProgressBar().setProgress(0);
 								mainPanel.getLblEta().setText("");
 								mainPanel.getLblSpeedCopy().setText(Messages.getString("labelProgressCheck"));
 							});
-							CompletableFuture.runAsync(() -> {
-								Platform.runLater(() -> {
-									new StatusMsgBox(fileList, appIcon).showAndWait();
+							if (autoCopy == false) {
+								CompletableFuture.runAsync(() -> {
+									Platform.runLater(() -> {
+										new StatusMsgBox(fileList, appIcon).showAndWait();
+									});
 								});
-							});
-
-							fileList.stream().forEach(f -> {
-								f.updateState();
-							});
-
-							final var onlyValidCopiedList = copiedList.stream().filter(c -> {
-								return FileEntryStatus.ALL_COPIES_DONE.equals(c.getSourceEntry().getCurrentResumeStatus());
-							}).collect(Collectors.toUnmodifiableList());
+							}
 
-							final var ice = new IntegrityCheckEngine(onlyValidCopiedList);
-							currentCopyEngine.set(ice);
+							/**
+							 * Out of the FX thread: only the new states are applied on it, before the check.
+							 */
+							probeAndApplyStates(fileEntries, destinations).join();
 
 							return ice.start(Runnable::run);
 						} else {
@@ -379,6 +464,8 @@ public class MainApp extends Application implements UIProgresser, UIMainPanelPro
 		store.setConfigValue("primaryStage.x", stage.getX());
 		store.setConfigValue("primaryStage.y", stage.getY());
 		store.setConfigValue("CBCheckAfterCopy", Boolean.toString(mainPanel.getCBCheckAfterCopy().isSelected()));
+		store.setConfigValue("CBWatchSources", Boolean.toString(mainPanel.getCBWatchSources().isSelected()));
+		store.setConfigValue("CBAutoCopy", Boolean.toString(mainPanel.getCBAutoCopy().isSelected()));
 
 		log.info("JavaFX GUI Interface is stopped");
 		System.exit(0);
@@ -406,10 +493,10 @@ public class MainApp extends Application implements UIProgresser, UIMainPanelPro
 
 	private void afterAllOperations() {
 		currentCopyEngine.setValue(null);
-		mainPanel.getBtnAddSourceDir().setDisable(false);
-		mainPanel.getBtnRemoveSourceDir().setDisable(false);
-		mainPanel.getBtnAddDestinationDir().setDisable(false);
-		mainPanel.getBtnRemoveDestinationDir().setDisable(false);
+		/**
+		 * Sources and destinations can't change during a scan.
+		 */
+		setSourceDestButtonsDisabled(currentScan != null);
 		mainPanel.getBtnAddSourceToScan().setDisable(false);
 		mainPanel.getInputPrefixDirName().setDisable(false);
 		mainPanel.getBtnStartCopy().setDisable(false);
@@ -419,12 +506,165 @@ public class MainApp extends Application implements UIProgresser, UIMainPanelPro
 		mainPanel.getLblEta().setText("");
 		mainPanel.getLblSpeedCopy().setText("");
 
-		mainPanel.getBackend().getFileList().stream().forEach(f -> {
-			f.updateState();
-		});
+		final List<FileEntry> fileEntries = List.copyOf(mainPanel.getBackend().getFileList());
+		final List<DestinationEntry> destinations = List.copyOf(mainPanel.getBackend().getDestsList());
+		CompletableFuture.runAsync(() -> {
+			probeAndApplyStates(fileEntries, destinations).thenRun(() -> {
+				Platform.runLater(this::afterStatesUpdate);
+			});
+		}, mainPanel.getBackend().getProbeExecutor());
+	}
+
+	/**
+	 * On the FX thread, after the copy, the check and the file state updates.
+	 */
+	private void afterStatesUpdate() {
+		if (currentCopyEngine.isNotNull().get()) {
+			/**
+			 * A new copy has already started.
+			 */
+			return;
+		}
+		if (isWatchAutoCopy()) {
+			/**
+			 * Don't wait the user: some new files may have been found during the copy.
+			 */
+			updateReadyToCopy();
+			if (hasFilesToAutoCopy()) {
+				mainPanel.getBtnStartCopy().fire();
+			}
+			return;
+		}
 		new StatusMsgBox(mainPanel.getBackend().getFileList(), appIcon).showAndWait();
 	}
 
+	/**
+	 * Blocking, out of the FX thread: probe the files and their copies. The new states are applied on the FX thread.
+	 * @param fileEntries a copy of the file list, done on the FX thread
+	 * @param destinations a copy of the destination list, done on the FX thread
+	 * @return done after the apply, with the removed file entries out of the file list.
+	 */
+	private CompletableFuture<Void> probeAndApplyStates(final List<FileEntry> fileEntries, final List<DestinationEntry> destinations) {
+		final Map<FileEntry, ProbedState> probedStates = new LinkedHashMap<>();
+		fileEntries.forEach(fileEntry -> {
+			try {
+				probedStates.put(fileEntry, fileEntry.probeState(destinations));
+			} catch (final RuntimeException e) {
+				log.error("Can't probe " + fileEntry, e);
+			}
+		});
+
+		final CompletableFuture<Void> applied = new CompletableFuture<>();
+		Platform.runLater(() -> {
+			try {
+				final var fileList = mainPanel.getBackend().getFileList();
+				probedStates.forEach((fileEntry, probedState) -> {
+					if (fileEntry.applyState(probedState)) {
+						fileList.remove(fileEntry);
+					}
+				});
+			} finally {
+				applied.complete(null);
+			}
+		});
+		return applied;
+	}
+
+	private void setSourceDestButtonsDisabled(final boolean disabled) {
+		mainPanel.getBtnAddSourceDir().setDisable(disabled);
+		mainPanel.getBtnRemoveSourceDir().setDisable(disabled);
+		mainPanel.getBtnAddDestinationDir().setDisable(disabled);
+		mainPanel.getBtnRemoveDestinationDir().setDisable(disabled);
+	}
+
+	private void updateReadyToCopy() {
+		final var fileList = mainPanel.getBackend().getFileList();
+		final LongSummaryStatistics stats = fileList.stream().filter(FileEntry.needsToBeCopied).mapToLong(fileEntry -> fileEntry.getFile().length()).summaryStatistics();
+		if (stats.getCount() > 0) {
+			final String label = String.format(Messages.getString("labelProgressReady"), stats.getCount(), MainApp.byteCountToDisplaySizeWithPrecision(stats.getSum()));
+			mainPanel.getLblProgressionCounter().setText(label);
+			mainPanel.getBtnStartCopy().setDisable(false);
+		}
+
+		mainPanel.getBtnClearScanlist().setDisable(fileList.isEmpty());
+	}
+
+	private boolean isWatchAutoCopy() {
+		return mainPanel.getCBWatchSources().isSelected() && mainPanel.getCBAutoCopy().isSelected();
+	}
+
+	/**
+	 * Files in error are not copied again automatically.
+	 */
+	private boolean hasFilesToAutoCopy() {
+		return mainPanel.getBackend().getFileList().stream().filter(FileEntry.needsToBeCopied).anyMatch(fileEntry -> fileEntry.getCurrentResumeStatus() != FileEntryStatus.ERROR_OR_INCOMPLETE);
+	}
+
+	private void startWatch(final SourceEntry source) {
+		try {
+			source.startWatch(file -> {
+				Platform.runLater(() -> {
+					onWatchedFile(source, file);
+				});
+			});
+		} catch (final IOException e) {
+			log4javaFx.error("Can't watch " + source, e);
+		}
+	}
+
+	/**
+	 * On the FX thread, for a new or changed file on a watched source.
+	 * The file and its copies are probed out of the FX thread, and the file list is updated after, on the FX thread.
+	 */
+	private void onWatchedFile(final SourceEntry source, final File file) {
+		final var fileList = mainPanel.getBackend().getFileList();
+		final var destsList = mainPanel.getBackend().getDestsList();
+		final List<DestinationEntry> actualDestinations = List.copyOf(destsList);
+		final Optional<FileEntry> actualFileEntry = fileList.stream().filter(fileEntry -> fileEntry.getFile().equals(file)).findFirst();
+
+		mainPanel.getBackend().getProbeExecutor().execute(() -> {
+			final Runnable updateFileList;
+			try {
+				if (actualFileEntry.isPresent()) {
+					final FileEntry fileEntry = actualFileEntry.get();
+					final Optional<ProbedState> probedState = fileEntry.probeStateIfChanged(actualDestinations);
+					updateFileList = () -> probedState.ifPresent(state -> {
+						if (fileEntry.applyState(state)) {
+							fileList.remove(fileEntry);
+						}
+					});
+				} else {
+					log.info("New file found on watched source: {}", file);
+					final FileEntry newFileEntry = source.createFileEntry(file, destsList);
+					actualDestinations.forEach(destination -> {
+						newFileEntry.addDestination(newFileEntry.probeNewDestination(destination));
+					});
+					updateFileList = () -> {
+						/**
+						 * The same file can be notified two times during its probe.
+						 */
+						if (fileList.contains(newFileEntry) == false) {
+							fileList.add(newFileEntry);
+						}
+					};
+				}
+			} catch (final RuntimeException e) {
+				log.error("Can't probe watched file " + file, e);
+				return;
+			}
+
+			Platform.runLater(() -> {
+				updateFileList.run();
+				if (currentCopyEngine.isNull().get()) {
+					updateReadyToCopy();
+					if (isWatchAutoCopy() && hasFilesToAutoCopy()) {
+						mainPanel.getBtnStartCopy().fire();
+					}
+				}
+			});
+		});
+	}
+
 	public static void setFolderDragAndDrop(final Node node, final Supplier<Boolean> isEmpty, final Consumer<File> onDropDirectory) {
 		final String defaultStyle = node.getStyle();
 		node.setOnDragOver(e -> {
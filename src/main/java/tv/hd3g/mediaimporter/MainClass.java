@@ -4,12 +4,17 @@ import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 
 import javafx.application.Application;
+import tv.hd3g.mediaimporter.io.DigestProvider;
 
 public class MainClass {
 
 	public static final String[] DIGEST_NAMES = System.getProperty("integrity.digest.names", "MD5,SHA,SHA-256").split(",");
 
+	/**
+	 * DIGEST_NAMES can use any JDK MessageDigest name, or XXH64 (see DigestProvider).
+	 */
 	public static void main(final String[] args) throws NoSuchAlgorithmException {
+		DigestProvider.register();
 		for (int i = 0; i < DIGEST_NAMES.length; i++) {
 			MessageDigest.getInstance(DIGEST_NAMES[i]);
 		}
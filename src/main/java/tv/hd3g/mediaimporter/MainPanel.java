@@ -90,6 +90,10 @@ public class MainPanel implements UITableSources, UITableDestinations, UITableFi
 	@FXML
 	private CheckBox cBCheckAfterCopy;
 	@FXML
+	private CheckBox cBWatchSources;
+	@FXML
+	private CheckBox cBAutoCopy;
+	@FXML
 	private Label lblAppAbout;
 	@FXML
 	private Hyperlink lblAppLink;
@@ -202,6 +206,14 @@ public class MainPanel implements UITableSources, UITableDestinations, UITableFi
 		return cBCheckAfterCopy;
 	}
 
+	public CheckBox getCBWatchSources() {
+		return cBWatchSources;
+	}
+
+	public CheckBox getCBAutoCopy() {
+		return cBAutoCopy;
+	}
+
 	@Override
 	public TableView<FileEntry> getTableFiles() {
 		return tableFiles;
@@ -17,6 +17,8 @@
 package tv.hd3g.mediaimporter;
 
 import java.util.ArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import javafx.collections.FXCollections;
 import javafx.collections.ObservableList;
@@ -31,6 +33,7 @@ public class PanelBackend {
 	private final ObservableList<SourceEntry> sourcesList;
 	private final ObservableList<DestinationEntry> destsList;
 	private final ObservableList<FileEntry> fileList;
+	private final ExecutorService probeExecutor;
 
 	public PanelBackend() {
 		toolRunner = new ToolRunner(new ExecutableFinder(), 2);
@@ -38,6 +41,12 @@ public class PanelBackend {
 		sourcesList = FXCollections.observableList(new ArrayList<SourceEntry>());
 		destsList = FXCollections.observableList(new ArrayList<DestinationEntry>());
 		fileList = FXCollections.observableList(new ArrayList<FileEntry>());
+		probeExecutor = Executors.newSingleThreadExecutor(r -> {
+			final Thread t = new Thread(r);
+			t.setDaemon(true);
+			t.setName("File probe");
+			return t;
+		});
 	}
 
 	public ToolRunner getToolRunner() {
@@ -59,4 +68,11 @@ public class PanelBackend {
 	public ObservableList<SourceEntry> getSourcesList() {
 		return sourcesList;
 	}
+
+	/**
+	 * For the file and copy probes out of the FX thread (watched files, new destinations, states after a copy).
+	 */
+	public ExecutorService getProbeExecutor() {
+		return probeExecutor;
+	}
 }
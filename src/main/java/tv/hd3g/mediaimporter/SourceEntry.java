@@ -18,30 +18,40 @@ package tv.hd3g.mediaimporter;
 
 import java.io.File;
 import java.io.IOException;
-import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Set;
-import java.util.stream.Collectors;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
 
 import javafx.beans.property.ReadOnlyObjectWrapper;
 import javafx.beans.value.ObservableValue;
-import javafx.collections.ObservableList;
 import javafx.scene.control.TableColumn.CellDataFeatures;
 import javafx.util.Callback;
+import tv.hd3g.mediaimporter.tools.DigestIndex;
 import tv.hd3g.mediaimporter.tools.FileSanity;
+import tv.hd3g.mediaimporter.tools.SourceSnapshotStore;
+import tv.hd3g.mediaimporter.tools.SourceSnapshotStore.DirState;
 
 public class SourceEntry extends BaseSourceDestEntry {
+	private static Logger log = LogManager.getLogger();
 
 	private final FileSanity fileSanity;
-	private final Map<File, Long> digestByFileCache;
+	private final DigestIndex digestIndex;
+	private final SourceSnapshotStore sourceSnapshotStore;
+	private Map<Path, DirState> lastSnapshot;
+	private SourceWatcher watcher;
 
-	public SourceEntry(final File rootPath, final FileSanity fileSanity, final Map<File, Long> digestByFileCache) {
+	public SourceEntry(final File rootPath, final FileSanity fileSanity, final DigestIndex digestIndex, final SourceSnapshotStore sourceSnapshotStore) {
 		super(rootPath);
 		this.fileSanity = fileSanity;
-		this.digestByFileCache = Objects.requireNonNull(digestByFileCache, "\"digestByFile\" can't to be null");
+		this.digestIndex = Objects.requireNonNull(digestIndex, "\"digestIndex\" can't to be null");
+		this.sourceSnapshotStore = Objects.requireNonNull(sourceSnapshotStore, "\"sourceSnapshotStore\" can't to be null");
 		updateColsDriveType();
 	}
 
@@ -52,35 +62,59 @@ public class SourceEntry extends BaseSourceDestEntry {
 	}
 
 	/**
-	 * @return new file entries.
+	 * Parallel walk, blocking. Only the changed dirs since the last scan are listed (see SourceSnapshotStore).
+	 * @param knownFiles will be ignored, must be thread safe if it changes during the scan.
+	 * @param onNewFileEntry called from the walk threads, as soon as a new file is found.
+	 * @param isStopped for cancel the scan, the snapshot is not updated after a cancel.
 	 */
-	public List<FileEntry> scanSource(final ObservableList<FileEntry> fileList, final List<DestinationEntry> destsList) throws IOException {
-		updateColsDriveType();
+	public synchronized void scanSource(final Set<File> knownFiles, final List<DestinationEntry> destsList, final Consumer<FileEntry> onNewFileEntry, final BooleanSupplier isStopped) throws IOException {
+		if (lastSnapshot == null) {
+			lastSnapshot = sourceSnapshotStore.load(rootPath);
+		}
 
-		final Set<FileEntry> actualFileEntrySet = fileList.stream().distinct().collect(Collectors.toSet());
-		if (fileList.size() != actualFileEntrySet.size()) {
-			/**
-			 * Remove duplicate entries.
-			 */
-			fileList.clear();
-			fileList.addAll(actualFileEntrySet);
+		final SourceWalker walker = new SourceWalker(fileSanity, lastSnapshot, path -> {
+			final File founded = path.toFile();
+			if (knownFiles.contains(founded)) {
+				return;
+			}
+			onNewFileEntry.accept(new FileEntry(this, founded, destsList, digestIndex));
+		}, isStopped);
+		walker.walk(rootPath.toPath());
+		if (isStopped.getAsBoolean()) {
+			return;
 		}
 
-		final Set<File> actualFileSet = fileList.stream().map(FileEntry::getFile).distinct().collect(Collectors.toSet());
+		final Map<Path, DirState> actualSnapshot = walker.getSnapshot();
+		sourceSnapshotStore.update(rootPath, lastSnapshot, actualSnapshot);
+		lastSnapshot = actualSnapshot;
+	}
+
+	public FileEntry createFileEntry(final File file, final List<DestinationEntry> destsList) {
+		return new FileEntry(this, file, destsList, digestIndex);
+	}
 
-		return Files.walk(rootPath.toPath()).map(Path::toFile).filter(founded -> {
-			if (founded.isDirectory()) {
-				return false;
-			} else if (actualFileSet.contains(founded)) {
-				return false;
-			} else if (founded.length() == 0) {
-				return false;
+	/**
+	 * Restart the watch if already started.
+	 * @param onStableFile called from the watch thread, for each valid new or changed file, after the "watch.quiet.period" (msec, 5 sec by default)
+	 */
+	public synchronized void startWatch(final Consumer<File> onStableFile) throws IOException {
+		stopWatch();
+		watcher = new SourceWatcher(rootPath.toPath(), Long.getLong("watch.quiet.period", 5000), path -> {
+			if (SourceWalker.isValidFile(fileSanity, path)) {
+				onStableFile.accept(path.toFile());
 			}
-			return fileSanity.isFileIsValid(founded);
-		}).peek(actualFileSet::add).map(founded -> {
-			final FileEntry newFileEntry = new FileEntry(this, founded, destsList, digestByFileCache);
-			fileList.add(newFileEntry);
-			return newFileEntry;
-		}).collect(Collectors.toUnmodifiableList());
+		});
+	}
+
+	public synchronized void stopWatch() {
+		if (watcher == null) {
+			return;
+		}
+		try {
+			watcher.close();
+		} catch (final IOException e) {
+			log.warn("Can't stop to watch " + rootPath, e);
+		}
+		watcher = null;
 	}
 }
@@ -0,0 +1,207 @@
+/*
+ * This file is part of mediaimporter.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * Copyright (C) hdsdi3g for hd3g.tv 2019
+ *
+*/
+package tv.hd3g.mediaimporter;
+
+import java.io.IOException;
+import java.nio.file.DirectoryIteratorException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import tv.hd3g.mediaimporter.tools.FileSanity;
+import tv.hd3g.mediaimporter.tools.SourceSnapshotStore.DirState;
+import tv.hd3g.mediaimporter.tools.SourceSnapshotStore.FileState;
+
+/**
+ * Walk a source dir tree in parallel, one fork by sub dir, and read the attributes only one time for each file and dir.
+ * Only non empty regular files are kept, if they and their parent dir are valid for FileSanity.
+ * With a previous snapshot, a dir with the same modification date is not listed again: its files are taken from the snapshot, and only its sub dirs are checked.
+ */
+class SourceWalker {
+	private static Logger log = LogManager.getLogger();
+
+	/**
+	 * Shared by all the sources scans and the destination slot indexes. Walks are I/O bound: use more threads than CPUs, by default.
+	 */
+	static final ForkJoinPool walkPool;
+
+	static {
+		final AtomicLong counter = new AtomicLong();
+		final int parallelism = Math.max(1, Integer.getInteger("scan.parallelism", Math.max(4, Runtime.getRuntime().availableProcessors() * 2)));
+		walkPool = new ForkJoinPool(parallelism, pool -> {
+			final ForkJoinWorkerThread t = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+			t.setDaemon(true);
+			t.setName("Scan source #" + counter.getAndIncrement());
+			return t;
+		}, null, false);
+	}
+
+	/**
+	 * A dir modified during the same (FAT) time unit as its last listing can have changed without a new modification date.
+	 */
+	static final long MTIME_PRECISION_MSEC = 2000;
+
+	private final FileSanity fileSanity;
+	private final Map<Path, DirState> previousSnapshot;
+	private final ConcurrentHashMap<Path, DirState> snapshot;
+	private final Consumer<Path> onValidFile;
+	private final BooleanSupplier isStopped;
+
+	/**
+	 * @param previousSnapshot can be empty
+	 * @param onValidFile called from the walk threads, in no particular order
+	 * @param isStopped checked before each dir and each file: a stopped walk ends as soon as possible, with an incomplete snapshot.
+	 */
+	SourceWalker(final FileSanity fileSanity, final Map<Path, DirState> previousSnapshot, final Consumer<Path> onValidFile, final BooleanSupplier isStopped) {
+		this.fileSanity = Objects.requireNonNull(fileSanity, "\"fileSanity\" can't to be null");
+		this.previousSnapshot = Objects.requireNonNull(previousSnapshot, "\"previousSnapshot\" can't to be null");
+		this.onValidFile = Objects.requireNonNull(onValidFile, "\"onValidFile\" can't to be null");
+		this.isStopped = Objects.requireNonNull(isStopped, "\"isStopped\" can't to be null");
+		snapshot = new ConcurrentHashMap<>();
+	}
+
+	/**
+	 * @return after the walk, the actual state of all the walked dirs; the not changed dirs keep their previous DirState instance.
+	 */
+	Map<Path, DirState> getSnapshot() {
+		return Map.copyOf(snapshot);
+	}
+
+	/**
+	 * Blocking. Unreadable sub dirs and files are logged and ignored.
+	 */
+	void walk(final Path rootDir) throws IOException {
+		final BasicFileAttributes rootAttributes = Files.readAttributes(rootDir, fileSanity.getAttributesType());
+		if (rootAttributes.isDirectory() == false) {
+			throw new IOException("Not a directory: " + rootDir);
+		}
+		walkPool.invoke(new DirectoryWalk(rootDir, fileSanity.isValid(rootAttributes), rootAttributes.lastModifiedTime().toMillis()));
+	}
+
+	/**
+	 * For a single file, out of a walk, with the same rules.
+	 */
+	static boolean isValidFile(final FileSanity fileSanity, final Path file) {
+		try {
+			final BasicFileAttributes attributes = Files.readAttributes(file, fileSanity.getAttributesType(), LinkOption.NOFOLLOW_LINKS);
+			if (attributes.isRegularFile() == false || attributes.size() == 0 || fileSanity.isValid(attributes) == false) {
+				return false;
+			}
+			final Path parent = file.getParent();
+			return parent == null || fileSanity.isValid(Files.readAttributes(parent, fileSanity.getAttributesType(), LinkOption.NOFOLLOW_LINKS));
+		} catch (final IOException e) {
+			log.warn("Can't read attributes for " + file, e);
+			return false;
+		}
+	}
+
+	private class DirectoryWalk extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+
+		private final Path dir;
+		private final boolean isValidDir;
+		private final long mtime;
+
+		private DirectoryWalk(final Path dir, final boolean isValidDir, final long mtime) {
+			this.dir = dir;
+			this.isValidDir = isValidDir;
+			this.mtime = mtime;
+		}
+
+		@Override
+		protected void compute() {
+			if (isStopped.getAsBoolean()) {
+				return;
+			}
+			final DirState previous = previousSnapshot.get(dir);
+			if (previous != null && previous.mtime == mtime && previous.valid == isValidDir && mtime < previous.listedDate - MTIME_PRECISION_MSEC) {
+				computeNotChanged(previous);
+				return;
+			}
+
+			final long listedDate = System.currentTimeMillis();
+			final List<DirectoryWalk> subDirs = new ArrayList<>();
+			final List<FileState> files = new ArrayList<>();
+
+			try (final DirectoryStream<Path> content = Files.newDirectoryStream(dir)) {
+				for (final Path path : content) {
+					if (isStopped.getAsBoolean()) {
+						return;
+					}
+					final BasicFileAttributes attributes;
+					try {
+						attributes = Files.readAttributes(path, fileSanity.getAttributesType(), LinkOption.NOFOLLOW_LINKS);
+					} catch (final IOException e) {
+						log.warn("Can't read attributes for " + path, e);
+						continue;
+					}
+
+					if (attributes.isDirectory()) {
+						subDirs.add(new DirectoryWalk(path, fileSanity.isValid(attributes), attributes.lastModifiedTime().toMillis()));
+					} else if (isValidDir && attributes.isRegularFile() && attributes.size() > 0 && fileSanity.isValid(attributes)) {
+						files.add(new FileState(path, attributes.size(), attributes.lastModifiedTime().toMillis()));
+						onValidFile.accept(path);
+					}
+				}
+				snapshot.put(dir, new DirState(mtime, listedDate, isValidDir, subDirs.stream().map(subDir -> subDir.dir).collect(Collectors.toUnmodifiableList()), files));
+			} catch (final IOException | DirectoryIteratorException e) {
+				log.warn("Can't walk in " + dir, e);
+			}
+
+			invokeAll(subDirs);
+		}
+
+		/**
+		 * Same dir content: only check the known sub dirs, a change in a sub dir don't change this dir date.
+		 */
+		private void computeNotChanged(final DirState previous) {
+			snapshot.put(dir, previous);
+			previous.files.forEach(file -> onValidFile.accept(file.path));
+
+			final List<DirectoryWalk> subDirs = new ArrayList<>();
+			for (final Path subDir : previous.subDirs) {
+				try {
+					final BasicFileAttributes attributes = Files.readAttributes(subDir, fileSanity.getAttributesType(), LinkOption.NOFOLLOW_LINKS);
+					if (attributes.isDirectory()) {
+						subDirs.add(new DirectoryWalk(subDir, fileSanity.isValid(attributes), attributes.lastModifiedTime().toMillis()));
+					}
+				} catch (final IOException e) {
+					log.warn("Can't read attributes for " + subDir, e);
+				}
+			}
+			invokeAll(subDirs);
+		}
+	}
+
+}
@@ -0,0 +1,203 @@
+/*
+ * This file is part of mediaimporter.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * Copyright (C) hdsdi3g for hd3g.tv 2019
+ *
+*/
+package tv.hd3g.mediaimporter;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Watch a source dir tree with the OS notifications (inotify on Linux), and report the new or changed files after a quiet period.
+ * A file is stable if it has no events and keeps the same size and date during the quiet period: useful for files still written by a recorder.
+ * All the sub dirs are watched, included the new ones. Uses one thread by watched source.
+ */
+class SourceWatcher implements Closeable {
+	private static Logger log = LogManager.getLogger();
+
+	private final Path rootDir;
+	private final long quietPeriodMsec;
+	private final Consumer<Path> onStableFile;
+	private final WatchService watchService;
+	private final Map<WatchKey, Path> dirByKey;
+	private final Map<Path, PendingFile> pendingFiles;
+	private final Thread watchThread;
+
+	/**
+	 * @param onStableFile called from the watch thread, with all the files, without FileSanity checks.
+	 */
+	SourceWatcher(final Path rootDir, final long quietPeriodMsec, final Consumer<Path> onStableFile) throws IOException {
+		this.rootDir = Objects.requireNonNull(rootDir, "\"rootDir\" can't to be null");
+		this.quietPeriodMsec = quietPeriodMsec;
+		this.onStableFile = Objects.requireNonNull(onStableFile, "\"onStableFile\" can't to be null");
+		watchService = rootDir.getFileSystem().newWatchService();
+		dirByKey = new HashMap<>();
+		pendingFiles = new HashMap<>();
+
+		registerAll(rootDir, false);
+
+		watchThread = new Thread(this::watch);
+		watchThread.setDaemon(true);
+		watchThread.setName("Watch " + rootDir);
+		watchThread.start();
+		log.info("Start to watch {} ({} dir(s)), with a quiet period of {} msec", rootDir, dirByKey.size(), quietPeriodMsec);
+	}
+
+	private static class PendingFile {
+		private long lastEventDate;
+		private long size;
+		private long lastModified;
+	}
+
+	/**
+	 * @param addFilesAsPending for a new dir: its files can be created before its registration.
+	 */
+	private void registerAll(final Path dir, final boolean addFilesAsPending) throws IOException {
+		Files.walkFileTree(dir, new SimpleFileVisitor<Path>() {
+
+			@Override
+			public FileVisitResult preVisitDirectory(final Path subDir, final BasicFileAttributes attrs) throws IOException {
+				dirByKey.put(subDir.register(watchService, ENTRY_CREATE, ENTRY_MODIFY, ENTRY_DELETE), subDir);
+				return FileVisitResult.CONTINUE;
+			}
+
+			@Override
+			public FileVisitResult visitFile(final Path file, final BasicFileAttributes attrs) throws IOException {
+				if (addFilesAsPending && attrs.isRegularFile()) {
+					onEvent(file);
+				}
+				return FileVisitResult.CONTINUE;
+			}
+
+			@Override
+			public FileVisitResult visitFileFailed(final Path file, final IOException e) throws IOException {
+				log.warn("Can't watch " + file, e);
+				return FileVisitResult.CONTINUE;
+			}
+		});
+	}
+
+	private void watch() {
+		try {
+			while (true) {
+				final WatchKey key = watchService.poll(Math.max(100, quietPeriodMsec / 4), TimeUnit.MILLISECONDS);
+				if (key != null) {
+					processEvents(key);
+				}
+				checkPendingFiles();
+			}
+		} catch (final ClosedWatchServiceException e) {
+			log.debug("Stop to watch {}", rootDir);
+		} catch (final InterruptedException e) {
+			log.warn("Watch interrupted for " + rootDir, e);
+		}
+	}
+
+	private void processEvents(final WatchKey key) {
+		final Path dir = dirByKey.get(key);
+		for (final WatchEvent<?> event : key.pollEvents()) {
+			if (event.kind() == OVERFLOW) {
+				log.warn("Too many changes on {}, some new files may be missed: scan again this source", rootDir);
+				continue;
+			} else if (dir == null) {
+				continue;
+			}
+			final Path path = dir.resolve((Path) event.context());
+
+			if (event.kind() == ENTRY_DELETE) {
+				pendingFiles.remove(path);
+			} else if (Files.isDirectory(path, LinkOption.NOFOLLOW_LINKS)) {
+				if (event.kind() == ENTRY_CREATE) {
+					try {
+						registerAll(path, true);
+					} catch (final IOException e) {
+						log.warn("Can't watch new dir " + path, e);
+					}
+				}
+			} else if (Files.isRegularFile(path, LinkOption.NOFOLLOW_LINKS)) {
+				onEvent(path);
+			}
+		}
+		if (key.reset() == false) {
+			dirByKey.remove(key);
+		}
+	}
+
+	private void onEvent(final Path file) {
+		final PendingFile pending = pendingFiles.computeIfAbsent(file, f -> new PendingFile());
+		pending.lastEventDate = System.currentTimeMillis();
+		pending.size = file.toFile().length();
+		pending.lastModified = file.toFile().lastModified();
+	}
+
+	private void checkPendingFiles() {
+		final long now = System.currentTimeMillis();
+		final Iterator<Map.Entry<Path, PendingFile>> pendingIterator = pendingFiles.entrySet().iterator();
+		while (pendingIterator.hasNext()) {
+			final Map.Entry<Path, PendingFile> entry = pendingIterator.next();
+			final PendingFile pending = entry.getValue();
+			if (now - pending.lastEventDate < quietPeriodMsec) {
+				continue;
+			}
+
+			final long size = entry.getKey().toFile().length();
+			final long lastModified = entry.getKey().toFile().lastModified();
+			if (size != pending.size || lastModified != pending.lastModified) {
+				/**
+				 * Changed without event (network shares...): wait again.
+				 */
+				pending.lastEventDate = now;
+				pending.size = size;
+				pending.lastModified = lastModified;
+				continue;
+			}
+
+			pendingIterator.remove();
+			if (Files.isRegularFile(entry.getKey(), LinkOption.NOFOLLOW_LINKS)) {
+				onStableFile.accept(entry.getKey());
+			}
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		watchService.close();
+	}
+
+}
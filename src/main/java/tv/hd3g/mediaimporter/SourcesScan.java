@@ -0,0 +1,249 @@
+/*
+ * This file is part of mediaimporter.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * Copyright (C) hdsdi3g for hd3g.tv 2019
+ *
+*/
+package tv.hd3g.mediaimporter;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import javafx.application.Platform;
+import tv.hd3g.mediaimporter.FileEntry.ProbedState;
+
+/**
+ * Scan all the sources out of the FX thread: probe the actual file entries (updated later on the FX thread), walk the sources, and search on the destinations the copies of each new file.
+ * Probes on destinations are done by some worker threads ("scan.parallel.probes", 4 by default).
+ * The new file entries are published by batches on the FX thread, only after their probes.
+ * Not reusable.
+ */
+class SourcesScan {
+	private static Logger log = LogManager.getLogger();
+
+	private static final long PUBLISH_INTERVAL_MSEC = 250;
+
+	private final List<SourceEntry> sources;
+	private final List<DestinationEntry> destsList;
+	private final List<DestinationEntry> actualDestinations;
+	private final List<FileEntry> actualFileEntries;
+	private final ConcurrentLinkedQueue<FileEntry> toPublish;
+	private final AtomicLong foundedFiles;
+	private final AtomicLong foundedBytes;
+	private final ThreadPoolExecutor probeExecutor;
+	private final List<IOException> scanErrors;
+	private volatile boolean wantToStop;
+
+	/**
+	 * Must be created on the FX thread.
+	 * @param destsList will be set to each new file entry
+	 */
+	SourcesScan(final List<SourceEntry> sources, final List<DestinationEntry> destsList, final List<FileEntry> actualFileEntries) {
+		this.sources = List.copyOf(sources);
+		this.destsList = Objects.requireNonNull(destsList, "\"destsList\" can't to be null");
+		actualDestinations = List.copyOf(destsList);
+		this.actualFileEntries = List.copyOf(actualFileEntries);
+		toPublish = new ConcurrentLinkedQueue<>();
+		foundedFiles = new AtomicLong();
+		foundedBytes = new AtomicLong();
+		scanErrors = new ArrayList<>();
+
+		final int probes = Math.max(1, Integer.getInteger("scan.parallel.probes", 4));
+		final AtomicLong counter = new AtomicLong();
+		probeExecutor = new ThreadPoolExecutor(probes, probes, 10l, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), r -> {
+			final Thread t = new Thread(r);
+			t.setDaemon(true);
+			t.setName("Scan probe #" + counter.getAndIncrement());
+			return t;
+		});
+		probeExecutor.allowCoreThreadTimeOut(true);
+	}
+
+	/**
+	 * Non-blocking.
+	 * @param onNewFileEntries called on the FX thread, regularly during the scan, with probed new file entries
+	 * @param onRemovedFileEntries called on the FX thread, one time, with the actual file entries to remove (deleted files), after the update of the others
+	 * @return done after the last FX thread calls, when all the sources are scanned or after a stop
+	 */
+	CompletableFuture<Void> asyncStart(final Consumer<List<FileEntry>> onNewFileEntries, final Consumer<List<FileEntry>> onRemovedFileEntries) {
+		final ScheduledExecutorService publishExecutor = Executors.newSingleThreadScheduledExecutor(r -> {
+			final Thread t = new Thread(r);
+			t.setDaemon(true);
+			t.setName("Scan publisher");
+			return t;
+		});
+		final ScheduledFuture<?> regularPublish = publishExecutor.scheduleWithFixedDelay(() -> {
+			publish(onNewFileEntries);
+		}, PUBLISH_INTERVAL_MSEC, PUBLISH_INTERVAL_MSEC, TimeUnit.MILLISECONDS);
+
+		final ExecutorService scanExecutor = Executors.newSingleThreadExecutor(r -> {
+			final Thread t = new Thread(r);
+			t.setDaemon(true);
+			t.setName("Scan sources");
+			return t;
+		});
+
+		return CompletableFuture.runAsync(() -> {
+			/**
+			 * Files may have been added or removed on the destinations, out of this app.
+			 */
+			actualDestinations.forEach(DestinationEntry::revalidateSlotsIndex);
+			final Map<FileEntry, ProbedState> probedStates = probeActualFileEntries();
+			Platform.runLater(() -> {
+				final List<FileEntry> toRemove = new ArrayList<>();
+				probedStates.forEach((fileEntry, probedState) -> {
+					if (fileEntry.applyState(probedState)) {
+						toRemove.add(fileEntry);
+					}
+				});
+				onRemovedFileEntries.accept(toRemove);
+			});
+			scanSources();
+		}, scanExecutor).whenComplete((v, e) -> {
+			regularPublish.cancel(false);
+			publishExecutor.shutdown();
+			scanExecutor.shutdown();
+			probeExecutor.shutdown();
+			publish(onNewFileEntries);
+		}).thenCompose(v -> {
+			/**
+			 * Done after the last publish on the FX thread.
+			 */
+			final CompletableFuture<Void> lastPublish = new CompletableFuture<>();
+			Platform.runLater(() -> lastPublish.complete(null));
+			return lastPublish;
+		});
+	}
+
+	/**
+	 * The actual file entries are displayed: they are only probed here, and changed later on the FX thread.
+	 * @return the new states of the changed files
+	 */
+	private Map<FileEntry, ProbedState> probeActualFileEntries() {
+		final Map<FileEntry, ProbedState> probedStates = new ConcurrentHashMap<>();
+		final List<CompletableFuture<Void>> probes = actualFileEntries.stream().map(fileEntry -> CompletableFuture.runAsync(() -> {
+			if (wantToStop == false) {
+				fileEntry.probeStateIfChanged(actualDestinations).ifPresent(probedState -> probedStates.put(fileEntry, probedState));
+			}
+		}, probeExecutor)).collect(Collectors.toUnmodifiableList());
+		CompletableFuture.allOf(probes.toArray(new CompletableFuture<?>[probes.size()])).join();
+		return probedStates;
+	}
+
+	private void scanSources() {
+		final Set<File> knownFiles = ConcurrentHashMap.newKeySet();
+		actualFileEntries.forEach(fileEntry -> knownFiles.add(fileEntry.getFile()));
+		final List<CompletableFuture<Void>> probes = new ArrayList<>();
+
+		for (final SourceEntry source : sources) {
+			if (wantToStop) {
+				break;
+			}
+			log.info("Scan source {}", source);
+			try {
+				source.scanSource(knownFiles, destsList, newFileEntry -> {
+					/**
+					 * A file can be found by two sources (a source in an other).
+					 */
+					if (knownFiles.add(newFileEntry.getFile()) == false) {
+						return;
+					}
+					final CompletableFuture<Void> probe = CompletableFuture.runAsync(() -> {
+						if (wantToStop) {
+							return;
+						}
+						actualDestinations.forEach(destination -> {
+							newFileEntry.addDestination(newFileEntry.probeNewDestination(destination));
+						});
+						foundedFiles.incrementAndGet();
+						foundedBytes.addAndGet(newFileEntry.getFile().length());
+						toPublish.add(newFileEntry);
+					}, probeExecutor);
+					synchronized (probes) {
+						probes.add(probe);
+					}
+				}, () -> wantToStop);
+			} catch (final IOException e) {
+				log.error("Can't scan " + source, e);
+				synchronized (scanErrors) {
+					scanErrors.add(e);
+				}
+			}
+		}
+
+		synchronized (probes) {
+			CompletableFuture.allOf(probes.toArray(new CompletableFuture<?>[probes.size()])).join();
+		}
+		log.info("Scan done, found {} new file(s)", foundedFiles.get());
+	}
+
+	private void publish(final Consumer<List<FileEntry>> onNewFileEntries) {
+		final List<FileEntry> batch = new ArrayList<>();
+		FileEntry fileEntry;
+		while ((fileEntry = toPublish.poll()) != null) {
+			batch.add(fileEntry);
+		}
+		if (batch.isEmpty() == false) {
+			Platform.runLater(() -> {
+				onNewFileEntries.accept(batch);
+			});
+		}
+	}
+
+	/**
+	 * Non-blocking: the running probes ends before the scan end.
+	 */
+	void stop() {
+		wantToStop = true;
+	}
+
+	boolean isStopped() {
+		return wantToStop;
+	}
+
+	long getFoundedFiles() {
+		return foundedFiles.get();
+	}
+
+	long getFoundedBytes() {
+		return foundedBytes.get();
+	}
+
+	List<IOException> getScanErrors() {
+		synchronized (scanErrors) {
+			return List.copyOf(scanErrors);
+		}
+	}
+
+}
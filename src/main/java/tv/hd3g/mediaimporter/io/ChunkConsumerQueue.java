@@ -0,0 +1,156 @@
+/*
+ * This file is part of mediaimporter.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * Copyright (C) hdsdi3g for hd3g.tv 2019
+ *
+*/
+package tv.hd3g.mediaimporter.io;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A bounded queue of read chunks, consumed at its own pace by a dedicated task (a destination writer, a digest...).
+ * Each chunk is handed with a read-only view, and a callback to call when the chunk is no longer used.
+ */
+class ChunkConsumerQueue {
+
+	@FunctionalInterface
+	interface ChunkConsumer {
+		void accept(ByteBuffer chunk) throws IOException;
+	}
+
+	private static final long OFFER_TIMEOUT_MSEC = 100;
+
+	private static final QueuedChunk END = new QueuedChunk(ByteBuffer.allocate(0), () -> {
+	});
+
+	private final LinkedBlockingQueue<QueuedChunk> queue;
+	private final ChunkConsumer consumer;
+	private final CompletableFuture<Void> end;
+	private volatile IOException lastException;
+	private volatile boolean closed;
+
+	/**
+	 * @param executor must have a free thread for this queue, during all the queue life.
+	 */
+	ChunkConsumerQueue(final int capacity, final ChunkConsumer consumer, final Executor executor) {
+		queue = new LinkedBlockingQueue<>(capacity);
+		this.consumer = Objects.requireNonNull(consumer, "\"consumer\" can't to be null");
+		end = CompletableFuture.runAsync(this::consumeAll, executor);
+		/**
+		 * A dead consumer (runtime error, interrupt) will never release the queued chunks: do it here, don't block the buffer ring.
+		 */
+		end.whenComplete((v, e) -> releaseAllQueued());
+	}
+
+	private static class QueuedChunk {
+		private final ByteBuffer chunk;
+		private final Runnable onRelease;
+
+		private QueuedChunk(final ByteBuffer chunk, final Runnable onRelease) {
+			this.chunk = chunk;
+			this.onRelease = onRelease;
+		}
+	}
+
+	private void consumeAll() {
+		try {
+			QueuedChunk queuedChunk;
+			while ((queuedChunk = queue.take()) != END) {
+				try {
+					/**
+					 * After an error, continue to release the chunks without use it: don't block the reader.
+					 */
+					if (lastException == null) {
+						consumer.accept(queuedChunk.chunk);
+					}
+				} catch (final IOException e) {
+					lastException = e;
+				} finally {
+					queuedChunk.onRelease.run();
+				}
+			}
+		} catch (final InterruptedException e) {
+			throw new RuntimeException("Interrupted chunk consumer", e);
+		}
+	}
+
+	private void releaseAllQueued() {
+		QueuedChunk queuedChunk;
+		while ((queuedChunk = queue.poll()) != null) {
+			queuedChunk.onRelease.run();
+		}
+	}
+
+	/**
+	 * Blocking if the queue is full, while the consumer is alive.
+	 * @return false if the consumer has ended before taking the item
+	 */
+	private boolean offer(final QueuedChunk queuedChunk) throws InterruptedException {
+		while (end.isDone() == false) {
+			if (queue.offer(queuedChunk, OFFER_TIMEOUT_MSEC, TimeUnit.MILLISECONDS)) {
+				if (end.isDone()) {
+					/**
+					 * The consumer has ended during the offer: it will never take it.
+					 */
+					releaseAllQueued();
+				}
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Blocking if the queue is full. If the consumer has ended, the chunk is just released.
+	 */
+	void put(final ByteBuffer chunk, final Runnable onRelease) throws InterruptedException {
+		if (offer(new QueuedChunk(chunk.asReadOnlyBuffer(), onRelease)) == false) {
+			onRelease.run();
+		}
+	}
+
+	int getDepth() {
+		return queue.size();
+	}
+
+	/**
+	 * @return null if no errors
+	 */
+	IOException getLastException() {
+		return lastException;
+	}
+
+	/**
+	 * Only wait a free place in the queue, can be called more than once.
+	 * @return done when all the queued chunks are consumed
+	 */
+	synchronized CompletableFuture<Void> close() {
+		if (closed == false) {
+			closed = true;
+			try {
+				offer(END);
+			} catch (final InterruptedException e) {
+				throw new RuntimeException("Can't close chunk consumer", e);
+			}
+		}
+		return end;
+	}
+
+}
@@ -0,0 +1,170 @@
+/*
+ * This file is part of mediaimporter.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * Copyright (C) hdsdi3g for hd3g.tv 2019
+ *
+*/
+package tv.hd3g.mediaimporter.io;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * A ring of direct buffers for one copy operation: the reader can fill the next buffers while the previous are still used by writers.
+ * Buffers are taken from (and given back to) a pool shared by all operations and all engine runs.
+ * The free buffers kept by the pool are limited by the copy and integrity buffer budgets: the others are left to the GC.
+ * Buffers can be aligned in memory, for direct I/O reads (see IntegrityReadMode.DIRECT).
+ * Not thread safe: only the read thread should call next().
+ */
+class CopyBufferRing implements AutoCloseable {
+	private static Logger log = LogManager.getLogger();
+
+	private static final int MIN_CAPACITY = 4096;
+	/**
+	 * Key: alignment << 32 | capacity
+	 */
+	private static final ConcurrentHashMap<Long, ConcurrentLinkedQueue<ByteBuffer>> freeBuffersByCapacity = new ConcurrentHashMap<>();
+	private static final long maxPooledBytes = Math.max(0, Long.getLong("buffer.pool.max", Long.getLong("copy.buffer.budget", 32 * 1024 * 1024) + Long.getLong("integrity.buffer.budget", 32 * 1024 * 1024)));
+	/**
+	 * Sum of the free buffers capacities in the pool.
+	 */
+	private static final AtomicLong pooledBytes = new AtomicLong();
+
+	private final ByteBuffer[] buffers;
+	private final CompletableFuture<?>[] releases;
+	private final int capacity;
+	private final int alignment;
+	private int position;
+
+	/**
+	 * @param depth max buffers count, at least 2
+	 * @param chunkSize max size for each buffer
+	 * @param sourceLength used to not reserve big buffers for little files
+	 */
+	CopyBufferRing(final int depth, final int chunkSize, final long sourceLength) {
+		this(depth, chunkSize, sourceLength, 1);
+	}
+
+	/**
+	 * @param alignment buffers address and capacity will be a multiple of it (a power of 2)
+	 */
+	CopyBufferRing(final int depth, final int chunkSize, final long sourceLength, final int alignment) {
+		this.alignment = alignment;
+		final long neededChunks = Math.max(1, (sourceLength + chunkSize - 1) / chunkSize);
+
+		if (neededChunks > 1) {
+			capacity = alignUp(chunkSize, alignment);
+		} else {
+			/**
+			 * Little file: use the smallest power of 2 able to get all the file
+			 */
+			capacity = alignUp((int) Math.min(chunkSize, Math.max(MIN_CAPACITY, Long.highestOneBit(Math.max(1, sourceLength - 1)) << 1)), alignment);
+		}
+
+		/**
+		 * Always one more for the last (empty) read.
+		 */
+		final int effectiveDepth = (int) Math.max(2, Math.min(depth, neededChunks + 1));
+		buffers = new ByteBuffer[effectiveDepth];
+		releases = new CompletableFuture<?>[effectiveDepth];
+		/**
+		 * Buffers are taken from the pool on the first use: an operation may never read with them (mapped copy).
+		 */
+		for (int pos = 0; pos < effectiveDepth; pos++) {
+			releases[pos] = CompletableFuture.completedFuture(null);
+		}
+		position = -1;
+	}
+
+	/**
+	 * Blocking if the next buffer is still used.
+	 * @return a cleared buffer
+	 */
+	ByteBuffer next() throws InterruptedException, ExecutionException {
+		position = (position + 1) % buffers.length;
+		releases[position].get();
+		if (buffers[position] == null) {
+			buffers[position] = take(capacity, alignment);
+		}
+		buffers[position].clear();
+		return buffers[position];
+	}
+
+	/**
+	 * @param release will be done when the last buffer returned by next() is no longer used.
+	 */
+	void releaseOn(final CompletableFuture<?> release) {
+		releases[position] = release;
+	}
+
+	int getDepth() {
+		return buffers.length;
+	}
+
+	/**
+	 * Wait all buffer users before give back the buffers to the pool.
+	 */
+	@Override
+	public void close() {
+		try {
+			CompletableFuture.allOf(releases).handle((v, e) -> null).get();
+		} catch (InterruptedException | ExecutionException e) {
+			log.warn("Can't wait the end of buffer users, buffers will not be reused", e);
+			return;
+		}
+		Arrays.stream(buffers).filter(Objects::nonNull).forEach(buffer -> giveBack(buffer, alignment));
+	}
+
+	private static int alignUp(final int size, final int alignment) {
+		return (int) Math.min((size + (long) alignment - 1) / alignment * alignment, Integer.MAX_VALUE / alignment * alignment);
+	}
+
+	private static long poolKey(final int capacity, final int alignment) {
+		return (long) alignment << 32 | capacity;
+	}
+
+	private static ByteBuffer take(final int capacity, final int alignment) {
+		final ByteBuffer buffer = freeBuffersByCapacity.computeIfAbsent(poolKey(capacity, alignment), c -> new ConcurrentLinkedQueue<>()).poll();
+		if (buffer != null) {
+			pooledBytes.addAndGet(-buffer.capacity());
+			return buffer;
+		}
+		log.trace("Allocate a new direct buffer of {} bytes, aligned on {}", capacity, alignment);
+		if (alignment == 1) {
+			return ByteBuffer.allocateDirect(capacity);
+		}
+		final ByteBuffer aligned = ByteBuffer.allocateDirect(capacity + alignment - 1).alignedSlice(alignment);
+		aligned.limit(capacity);
+		return aligned.slice();
+	}
+
+	private static void giveBack(final ByteBuffer buffer, final int alignment) {
+		if (pooledBytes.addAndGet(buffer.capacity()) > maxPooledBytes) {
+			pooledBytes.addAndGet(-buffer.capacity());
+			log.trace("Pool is full ({} bytes max), drop a direct buffer of {} bytes", maxPooledBytes, buffer.capacity());
+			return;
+		}
+		buffer.clear();
+		freeBuffersByCapacity.computeIfAbsent(poolKey(buffer.capacity(), alignment), c -> new ConcurrentLinkedQueue<>()).add(buffer);
+	}
+
+}
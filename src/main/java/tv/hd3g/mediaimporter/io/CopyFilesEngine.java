@@ -18,16 +18,21 @@ package tv.hd3g.mediaimporter.io;
 
 import java.io.File;
 import java.io.IOException;
-import java.nio.ByteBuffer;
+import java.nio.file.FileStore;
 import java.nio.file.Files;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.Executors;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.SynchronousQueue;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
 import java.util.stream.Collectors;
 
 import org.apache.logging.log4j.LogManager;
@@ -35,6 +40,8 @@ import org.apache.logging.log4j.Logger;
 
 import tv.hd3g.mediaimporter.DestinationEntry;
 import tv.hd3g.mediaimporter.FileEntry;
+import tv.hd3g.mediaimporter.MainApp;
+import tv.hd3g.mediaimporter.SourceEntry;
 import tv.hd3g.mediaimporter.ui.UIProgresser;
 
 public class CopyFilesEngine implements CanBeStopped {
@@ -42,54 +49,118 @@ public class CopyFilesEngine implements CanBeStopped {
 
 	private final List<CopyOperation> copyList;
 	final List<DestinationEntry> allDestinations;
-	private final ThreadPoolExecutor mainExecutor;
+	private final Map<SourceEntry, FileStore> sourceDeviceBySource;
+	private final Map<FileStore, ThreadPoolExecutor> readExecutorBySourceDevice;
 	private final ThreadPoolExecutor writeExecutor;
+	private final long bufferBudgetBytes;
+	private final Map<FileStore, Integer> chunkSizeBySourceDevice;
+	private final int parallelOperationsByDevice;
+	private List<CompletableFuture<CopyOperationResult>> copyTasks;
 	private CompletableFuture<List<CopyOperationResult>> allTasks;
 
 	private final long dataSizeToCopyBytes;
 	private final GlobalCopyStat globalCopyStat;
 
 	private volatile boolean wantToStop;
+	private volatile Consumer<CopyOperationResult> onCopyDone;
 
 	/**
 	 * Not reusable
 	 */
 	public CopyFilesEngine(final List<FileEntry> toCopy, final List<DestinationEntry> allDestinations, final UIProgresser ui) {
-		this.allDestinations = allDestinations;
+		this.allDestinations = List.copyOf(allDestinations);
 
-		mainExecutor = new ThreadPoolExecutor(1, 1, 10l, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(), r -> {
-			final Thread t = new Thread(r);
-			t.setDaemon(true);
-			t.setName("CopyOperation");
-			return t;
-		});
+		/**
+		 * One read pipeline by source device (card reader, USB drive...): all devices are read in parallel.
+		 */
+		sourceDeviceBySource = toCopy.stream().map(FileEntry::getSource).distinct().collect(Collectors.toUnmodifiableMap(source -> source, source -> {
+			try {
+				return Files.getFileStore(source.getRootPath().toPath());
+			} catch (final IOException e) {
+				throw new RuntimeException("Can't prepare copy operation with " + source, e);
+			}
+		}));
+		final List<FileStore> sourceDevices = sourceDeviceBySource.values().stream().distinct().collect(Collectors.toUnmodifiableList());
+
+		/**
+		 * In each pipeline, keep some copy operations in flight: while one is finishing its last writes, the next one can starts to read.
+		 * By default two by device, limited by the write threads needed for each operation (one by destination + one for the source digest).
+		 */
+		final int availableProcessors = Runtime.getRuntime().availableProcessors();
+		final int defaultParallelOperations = Math.max(1, Math.min(2, availableProcessors / (allDestinations.size() + 1) / Math.max(1, sourceDevices.size())));
+		parallelOperationsByDevice = Math.max(1, Integer.getInteger("copy.parallel.operations", defaultParallelOperations));
+		log.debug("Use {} parallel copy operation(s) by source device, for {} source device(s) and {} destination(s)", parallelOperationsByDevice, sourceDevices.size(), allDestinations.size());
 
+		readExecutorBySourceDevice = sourceDevices.stream().collect(Collectors.toUnmodifiableMap(fileStore -> fileStore, fileStore -> {
+			final AtomicLong readCounter = new AtomicLong();
+			return new ThreadPoolExecutor(parallelOperationsByDevice, parallelOperationsByDevice, 10l, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(), r -> {
+				final Thread t = new Thread(r);
+				t.setDaemon(true);
+				t.setName("CopyOperation " + fileStore.name() + " #" + readCounter.getAndIncrement());
+				return t;
+			});
+		}));
+
+		/**
+		 * Each copy operation needs a thread for each destination writer and for the source digest, during all the copy.
+		 */
 		final AtomicLong counter = new AtomicLong();
-		final int size = Math.min(allDestinations.size() + 1, Runtime.getRuntime().availableProcessors());
-		writeExecutor = new ThreadPoolExecutor(size, size, 1l, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), r -> {
+		writeExecutor = new ThreadPoolExecutor(0, Integer.MAX_VALUE, 10l, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(), r -> {
 			final Thread t = new Thread(r);
 			t.setDaemon(true);
 			t.setName("Write #" + counter.getAndIncrement());
 			return t;
 		});
 
-		// final int baseBufferSize = (int) Files.getFileStore(source).getBlockSize();
 		/**
-		 * 67 108 864 bytes
+		 * Each running operation reads with its own buffer ring (taken from a shared pool), limited by a memory budget.
+		 * The chunk size is aligned on the source device block size.
 		 */
-		final ByteBuffer bufferA = ByteBuffer.allocateDirect(256 * 256 * 256 * 4);
-		final ByteBuffer bufferB = ByteBuffer.allocateDirect(256 * 256 * 256 * 4);
+		bufferBudgetBytes = Long.getLong("copy.buffer.budget", 32 * 1024 * 1024);
+		final int defaultChunkSize = Integer.getInteger("copy.buffer.chunksize", 8 * 1024 * 1024);
+		chunkSizeBySourceDevice = sourceDevices.stream().collect(Collectors.toUnmodifiableMap(fileStore -> fileStore, fileStore -> {
+			long blockSize;
+			try {
+				blockSize = fileStore.getBlockSize();
+			} catch (final IOException | UnsupportedOperationException e) {
+				log.debug("Can't get block size for " + fileStore, e);
+				blockSize = 4096;
+			}
+			final long chunkSize = Math.max(blockSize, (defaultChunkSize + blockSize - 1) / blockSize * blockSize);
+			return (int) Math.min(chunkSize, Integer.MAX_VALUE / blockSize * blockSize);
+		}));
+		log.debug("Use {} bytes of buffers by copy operation, with chunk size by source device: {}", bufferBudgetBytes, chunkSizeBySourceDevice);
+
+		/**
+		 * With TRANSFER mode, the source digest can be computed after the copy (by default), or by the integrity check.
+		 * With MAPPED mode, sources are mapped by windows of 256 MB by default.
+		 */
+		final CopyMode copyMode = CopyMode.getFromConfig();
+		final boolean digestAfterTransfer = System.getProperty("copy.transfer.digest", "after").equalsIgnoreCase("skip") == false;
+		final long mappedWindowSize = Math.max(1024 * 1024, Math.min(Long.getLong("copy.mmap.window", 256 * 1024 * 1024), Integer.MAX_VALUE));
+		log.debug("Use {} copy mode", copyMode);
+
+		/**
+		 * Destinations on the same filesystem as a source are cloned if possible, unless "copy.reflink" is "off".
+		 */
+		final ReflinkCloner reflinkCloner = new ReflinkCloner(sourceDeviceBySource, allDestinations, System.getProperty("copy.reflink", "auto").equalsIgnoreCase("off") == false);
 
 		copyList = toCopy.stream().map(fileEntry -> {
 			try {
-				return new CopyOperation(fileEntry, bufferA, bufferB, writeExecutor);
+				return new CopyOperation(fileEntry, writeExecutor, copyMode, digestAfterTransfer, mappedWindowSize, reflinkCloner, this.allDestinations);
 			} catch (final IOException e) {
 				throw new RuntimeException("Can't prepare copy operation with " + fileEntry, e);
 			}
 		}).collect(Collectors.toUnmodifiableList());
 
-		globalCopyStat = new GlobalCopyStat(copyList.stream().map(CopyOperation::getCopyStat).collect(Collectors.toUnmodifiableList()), ui);
+		final Map<String, List<CopyStat>> copyStatsBySourceDevice = copyList.stream().collect(Collectors.groupingBy(copyOperation -> {
+			return getSourceDevice(copyOperation).toString();
+		}, LinkedHashMap::new, Collectors.mapping(CopyOperation::getCopyStat, Collectors.toUnmodifiableList())));
+		globalCopyStat = new GlobalCopyStat(copyStatsBySourceDevice, ui);
 
+		copyTasks = List.of();
+		onCopyDone = copied -> {
+		};
 		allTasks = CompletableFuture.failedFuture(new NullPointerException("Never started"));
 
 		dataSizeToCopyBytes = copyList.stream().mapToLong(CopyOperation::getSourceLength).sum();
@@ -111,15 +182,40 @@ public class CopyFilesEngine implements CanBeStopped {
 		});
 	}
 
+	/**
+	 * @param onCopyDone called by the copy threads, for each file copied without errors, before the asyncStart end.
+	 */
+	public void setOnCopyDone(final Consumer<CopyOperationResult> onCopyDone) {
+		this.onCopyDone = Objects.requireNonNull(onCopyDone, "\"onCopyDone\" can't to be null");
+	}
+
 	/**
 	 * Non-blocking
 	 */
 	public CompletableFuture<List<CopyOperationResult>> asyncStart() {
-		log.info("Put " + copyList.size() + " item(s) in queue for copy");
+		log.info("Put " + copyList.size() + " item(s) in queue for copy, on " + readExecutorBySourceDevice.size() + " source device(s)");
 
-		allTasks = CompletableFuture.supplyAsync(() -> {
-			return copyList.stream().filter(cL -> wantToStop == false).map(CopyOperation::run).collect(Collectors.toUnmodifiableList());
-		}, mainExecutor);
+		copyTasks = copyList.stream().map(copyOperation -> {
+			return CompletableFuture.supplyAsync(() -> {
+				if (wantToStop) {
+					return null;
+				}
+				final int chunkSize = chunkSizeBySourceDevice.get(getSourceDevice(copyOperation));
+				final int bufferDepth = (int) Math.max(2, Math.min(bufferBudgetBytes / chunkSize, Integer.MAX_VALUE));
+				final CopyOperationResult result = copyOperation.run(bufferDepth, chunkSize);
+				if (wantToStop == false && copyOperation.getCopyStat().getLastException().isEmpty() && result.getResultCopies().isEmpty() == false) {
+					onCopyDone.accept(result);
+				}
+				return result;
+			}, readExecutorBySourceDevice.get(getSourceDevice(copyOperation)));
+		}).collect(Collectors.toUnmodifiableList());
+
+		/**
+		 * Results are kept in copyList order; stopped operations are not returned.
+		 */
+		allTasks = CompletableFuture.allOf(copyTasks.toArray(new CompletableFuture<?>[copyTasks.size()])).thenApply(v -> {
+			return copyTasks.stream().map(CompletableFuture::join).filter(Objects::nonNull).collect(Collectors.toUnmodifiableList());
+		});
 
 		final ScheduledFuture<?> regularUIUpdaterFuture = Executors.newScheduledThreadPool(1, r -> {
 			final Thread t = new Thread(r);
@@ -134,14 +230,16 @@ public class CopyFilesEngine implements CanBeStopped {
 			regularUIUpdaterFuture.cancel(false);
 
 			final long duration = globalCopyStat.getEndDate() - globalCopyStat.getSetStartDate();
+			globalCopyStat.getMeanSpeedBySourceDevice().forEach((sourceDevice, speed) -> {
+				log.info("Mean read speed for " + sourceDevice + ": " + MainApp.byteCountToDisplaySizeWithPrecision(speed) + "/sec");
+			});
 			globalCopyStat.getSlotList().forEach(slot -> {
 				slot.addLogHistoryOnEndAllCopies(dataSizeToCopyBytes, duration);
 			});
 
 			return taskList;
 		}).whenCompleteAsync((ok, err) -> {
-			mainExecutor.shutdown();
-			writeExecutor.shutdown();
+			shutdownExecutors();
 		});
 	}
 
@@ -152,25 +250,37 @@ public class CopyFilesEngine implements CanBeStopped {
 	public void asyncStop(final Runnable onDone) {
 		wantToStop = true;
 
-		if (mainExecutor.getActiveCount() == 0) {
-			mainExecutor.shutdown();
-			writeExecutor.shutdown();
+		if (readExecutorBySourceDevice.values().stream().mapToInt(ThreadPoolExecutor::getActiveCount).sum() == 0) {
+			shutdownExecutors();
 			onDone.run();
 			return;
 		}
-		log.info("Set to stop current copy queue: " + mainExecutor.getQueue().size() + " item(s)");
+		log.info("Set to stop current copy queue: " + readExecutorBySourceDevice.values().stream().mapToInt(executor -> executor.getQueue().size()).sum() + " item(s)");
 		allTasks.completeExceptionally(new Exception("Manual stop operation"));
 
-		mainExecutor.getQueue().clear();
-		writeExecutor.getQueue().clear();
-
 		copyList.forEach(copyOperation -> {
 			copyOperation.switchStop();
 		});
-		CompletableFuture.runAsync(onDone, mainExecutor).thenAcceptAsync(v -> {
-			mainExecutor.shutdown();
-			writeExecutor.shutdown();
+
+		/**
+		 * Queued operations and writes are not removed: they will see wantToStop and ends immediately.
+		 * onDone is called only after all the running operations are really stopped.
+		 */
+		CompletableFuture.allOf(copyTasks.toArray(new CompletableFuture<?>[copyTasks.size()])).handleAsync((v, e) -> {
+			onDone.run();
+			return null;
+		}).thenAcceptAsync(v -> {
+			shutdownExecutors();
 		});
 	}
 
+	private FileStore getSourceDevice(final CopyOperation copyOperation) {
+		return sourceDeviceBySource.get(copyOperation.getFileEntry().getSource());
+	}
+
+	private void shutdownExecutors() {
+		readExecutorBySourceDevice.values().forEach(ThreadPoolExecutor::shutdown);
+		writeExecutor.shutdown();
+	}
+
 }
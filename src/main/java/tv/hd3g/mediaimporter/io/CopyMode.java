@@ -0,0 +1,42 @@
+/*
+ * This file is part of mediaimporter.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * Copyright (C) hdsdi3g for hd3g.tv 2019
+ *
+*/
+package tv.hd3g.mediaimporter.io;
+
+public enum CopyMode {
+
+	/**
+	 * Read source in buffers, and write each buffer to all destinations
+	 */
+	BUFFERED,
+	/**
+	 * Zero-copy with FileChannel.transferTo, only for single destination copies (else BUFFERED is used)
+	 */
+	TRANSFER,
+	/**
+	 * Map the source by windows, and write each window slice to all destinations, without read copies.
+	 * Fall back to BUFFERED if the source filesystem refuses mmap.
+	 */
+	MAPPED;
+
+	/**
+	 * @return from "copy.mode" property, BUFFERED by default
+	 */
+	public static CopyMode getFromConfig() {
+		return CopyMode.valueOf(System.getProperty("copy.mode", BUFFERED.name()).trim().toUpperCase());
+	}
+
+}
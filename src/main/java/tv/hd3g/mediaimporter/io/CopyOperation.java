@@ -20,24 +20,26 @@ import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.Files;
 import java.nio.file.OpenOption;
 import java.nio.file.Path;
 import java.nio.file.StandardOpenOption;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.Collections;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Objects;
 import java.util.Set;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.stream.Collectors;
 
 import org.apache.commons.io.FileUtils;
@@ -45,49 +47,68 @@ import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
 import javafx.application.Platform;
+import tv.hd3g.mediaimporter.DestinationEntry;
 import tv.hd3g.mediaimporter.DestinationEntrySlot;
 import tv.hd3g.mediaimporter.FileEntry;
+import tv.hd3g.mediaimporter.FileEntry.ProbedState;
 import tv.hd3g.mediaimporter.MainApp;
-import tv.hd3g.mediaimporter.MainClass;
 
 public class CopyOperation {
 	private static Logger log = LogManager.getLogger();
 
 	private static final Set<OpenOption> OPEN_OPTIONS_READ_ONLY = Set.of(StandardOpenOption.READ);
-	private static final Set<OpenOption> OPEN_OPTIONS_WRITE_NEW = Set.of(StandardOpenOption.WRITE, StandardOpenOption.CREATE_NEW);
-	private static final String suffixCopyFileName = "-oncopy";
+	/**
+	 * A temp file can be already here, from an interrupted copy: it will be resumed.
+	 */
+	private static final Set<OpenOption> OPEN_OPTIONS_WRITE_RESUME = Set.of(StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.CREATE);
+	public static final String suffixCopyFileName = "-oncopy";
 
 	private final Path source;
 	private final FileEntry entryToCopy;
 	private final List<DestinationEntrySlot> destinationListToCopy;
-	private final List<ByteBuffer> bufferPool;
+	private final Map<DestinationEntrySlot, File> sameContentBySlot;
 	private final Executor writeExecutor;
 	private volatile boolean wantToStop;
 	private final CopyStat copyStat;
-	private final MessageDigest sourceMessageDigest;
-
-	CopyOperation(final FileEntry entryToCopy, final ByteBuffer bufferA, final ByteBuffer bufferB, final Executor writeExecutor) throws IOException {
+	private final CopyMode copyMode;
+	private final boolean digestAfterTransfer;
+	private final long mappedWindowSize;
+	private final ReflinkCloner reflinkCloner;
+	private final List<DestinationEntry> allDestinations;
+	private Map<String, String> sourceDigests;
+
+	/**
+	 * @param digestAfterTransfer only for TRANSFER mode: compute the source digest with a second read pass, else let the integrity check do it.
+	 * @param mappedWindowSize only for MAPPED mode: max mapped size in one time, for each window.
+	 * @param reflinkCloner for the destinations on the same filesystem as the source, tried before any copy mode.
+	 * @param allDestinations a copy of the destination list, done on the FX thread, for the state update after the copy.
+	 */
+	CopyOperation(final FileEntry entryToCopy, final Executor writeExecutor, final CopyMode copyMode, final boolean digestAfterTransfer, final long mappedWindowSize, final ReflinkCloner reflinkCloner, final List<DestinationEntry> allDestinations) throws IOException {
 		this.entryToCopy = entryToCopy;
-		bufferPool = new ArrayList<>(Arrays.asList(bufferA, bufferB));
-
 		this.writeExecutor = writeExecutor;
+		this.copyMode = Objects.requireNonNull(copyMode, "\"copyMode\" can't to be null");
+		this.digestAfterTransfer = digestAfterTransfer;
+		this.mappedWindowSize = mappedWindowSize;
+		this.reflinkCloner = Objects.requireNonNull(reflinkCloner, "\"reflinkCloner\" can't to be null");
+		this.allDestinations = Objects.requireNonNull(allDestinations, "\"allDestinations\" can't to be null");
 		wantToStop = false;
 		source = entryToCopy.getFile().toPath();
 		destinationListToCopy = entryToCopy.getToCopyDestinationSlotList();
+		sameContentBySlot = new HashMap<>();
+		destinationListToCopy.forEach(slot -> entryToCopy.getSameContentCopy(slot.getDestination()).ifPresent(sameContent -> sameContentBySlot.put(slot, sameContent)));
 		copyStat = new CopyStat(this, entryToCopy.getFile().length());
-
-		try {
-			sourceMessageDigest = MessageDigest.getInstance(MainClass.DIGEST_NAMES[0]);
-		} catch (final NoSuchAlgorithmException e) {
-			throw new RuntimeException("Can't init " + MainClass.DIGEST_NAMES[0] + " Digest", e);
-		}
+		sourceDigests = Map.of();
 	}
 
 	List<DestinationEntrySlot> getDestinationListToCopy() {
 		return destinationListToCopy;
 	}
 
-	public CopyOperationResult run() {
+	/**
+	 * @param bufferDepth max buffers count used during this run
+	 * @param bufferChunkSize max read size for each buffer
+	 */
+	public CopyOperationResult run(final int bufferDepth, final int bufferChunkSize) {
 		if (destinationListToCopy.isEmpty()) {
 			log.error("No destinations to copy for " + entryToCopy);
 			return new CopyOperationResult(entryToCopy, Map.of());
@@ -133,92 +154,63 @@ public class CopyOperation {
 
 		final Map<FileChannel, DestinationEntrySlot> slotByFileChannel = new LinkedHashMap<>();
 		final Map<FileChannel, Path> pathByFileChannel = new LinkedHashMap<>();
+		final Map<Path, DestinationEntrySlot> linkedSlotsByPath = new LinkedHashMap<>();
+		final Map<Path, DestinationEntrySlot> clonedSlotsByPath = new LinkedHashMap<>();
 
-		try (final FileChannel sourceChannel = FileChannel.open(source, OPEN_OPTIONS_READ_ONLY)) {
+		/**
+		 * The buffer ring is closed before the destination channels: it waits the last writes.
+		 */
+		try (final FileChannel sourceChannel = FileChannel.open(source, OPEN_OPTIONS_READ_ONLY); final CopyBufferRing bufferRing = new CopyBufferRing(bufferDepth, bufferChunkSize, copyStat.getSourceFileSizeBytes())) {
 			for (final Map.Entry<Path, DestinationEntrySlot> entry : slotsToCopyByPath.entrySet()) {
 				entry.getValue().addLogHistoryOnStartsCopy(source.toFile(), entry.getKey().toFile());
 
 				final File tempFile = new File(entry.getKey().toFile().getPath() + suffixCopyFileName);
+				if (linkSameContent(entry.getKey(), entry.getValue())) {
+					Files.deleteIfExists(tempFile.toPath());
+					linkedSlotsByPath.put(entry.getKey(), entry.getValue());
+					continue;
+				}
+				if (cloneSource(entry.getKey(), entry.getValue())) {
+					Files.deleteIfExists(tempFile.toPath());
+					clonedSlotsByPath.put(entry.getKey(), entry.getValue());
+					continue;
+				}
 				FileUtils.forceMkdir(tempFile.getParentFile());
 
-				final FileChannel destination = FileChannel.open(tempFile.toPath(), OPEN_OPTIONS_WRITE_NEW);
+				final FileChannel destination = FileChannel.open(tempFile.toPath(), OPEN_OPTIONS_WRITE_RESUME);
 				slotByFileChannel.put(destination, entry.getValue());
 				pathByFileChannel.put(destination, entry.getKey());
 			}
 
 			final List<Entry<FileChannel, DestinationEntrySlot>> allFileChannelSlots = slotByFileChannel.entrySet().stream().collect(Collectors.toUnmodifiableList());
+			final MappedByteBuffer firstWindow = copyMode == CopyMode.MAPPED ? mapFirstWindow(sourceChannel, bufferChunkSize) : null;
+			/**
+			 * MAPPED and TRANSFER can fall back to BUFFERED.
+			 */
+			final CopyMode usedCopyMode;
 
-			long lastLoopDateNanoSec = System.nanoTime();
-
-			ByteBuffer currentBuffer = bufferPool.get(0);
-			currentBuffer.clear();
-
-			List<CompletableFuture<?>> writers = Collections.emptyList();
-			CompletableFuture<?> sourceDigestReadingChunk = CompletableFuture.completedFuture(null);
-
-			while (sourceChannel.read(currentBuffer) > 0) {
-				if (wantToStop) {
+			if (firstWindow != null) {
+				usedCopyMode = CopyMode.MAPPED;
+				if (mappedCopy(sourceChannel, firstWindow, bufferChunkSize, bufferRing.getDepth(), allFileChannelSlots) == false) {
 					return new CopyOperationResult(entryToCopy, Map.of());
 				}
-				currentBuffer.flip();
-				copyStat.onReadWriteLoop(currentBuffer.remaining(), System.nanoTime() - lastLoopDateNanoSec);
-
-				/**
-				 * Wait to ends writes
-				 */
-				writers.forEach(cf -> {
-					try {
-						cf.get();
-					} catch (InterruptedException | ExecutionException e) {
-						throw new RuntimeException(e);
-					}
-				});
-				sourceDigestReadingChunk.get();
-
-				final ByteBuffer currentWriteBuffer = currentBuffer;
-				/**
-				 * Parallel writes
-				 */
-				writers = allFileChannelSlots.stream().map(entry -> {
-					return CompletableFuture.runAsync(() -> {
-						if (wantToStop) {
-							return;
-						}
-						try {
-							final long timeBeforeWrite = System.nanoTime();
-							final int sizeWrited = entry.getKey().write(currentWriteBuffer.asReadOnlyBuffer());
-							copyStat.onWrite(entry.getValue(), sizeWrited, System.nanoTime() - timeBeforeWrite);
-						} catch (final IOException e) {
-							throw new RuntimeException(e);
-						}
-					}, writeExecutor);
-				}).collect(Collectors.toUnmodifiableList());
-
-				Collections.reverse(bufferPool);
-				currentBuffer = bufferPool.get(0);
-				currentBuffer.clear();
-
-				sourceDigestReadingChunk = CompletableFuture.runAsync(() -> {
-					if (wantToStop) {
-						return;
-					}
-					sourceMessageDigest.update(currentWriteBuffer.asReadOnlyBuffer());
-				}, writeExecutor);
-
-				lastLoopDateNanoSec = System.nanoTime();
-			}
-
-			/**
-			 * Wait to the last ends writes
-			 */
-			writers.forEach(cf -> {
-				try {
-					cf.get();
-				} catch (InterruptedException | ExecutionException e) {
-					throw new RuntimeException(e);
+			} else if (copyMode == CopyMode.TRANSFER && allFileChannelSlots.size() == 1 && allFileChannelSlots.get(0).getKey().size() == 0) {
+				usedCopyMode = CopyMode.TRANSFER;
+				final Entry<FileChannel, DestinationEntrySlot> destination = allFileChannelSlots.get(0);
+				if (transferCopy(sourceChannel, destination.getKey(), destination.getValue(), bufferChunkSize) == false) {
+					return new CopyOperationResult(entryToCopy, Map.of());
+				}
+				if (digestAfterTransfer && readSourceDigests(sourceChannel, bufferRing) == false) {
+					return new CopyOperationResult(entryToCopy, Map.of());
 				}
-			});
-			sourceDigestReadingChunk.get();
+			} else {
+				usedCopyMode = CopyMode.BUFFERED;
+				if (bufferedCopy(sourceChannel, bufferRing, allFileChannelSlots) == false) {
+					return new CopyOperationResult(entryToCopy, Map.of());
+				}
+			}
+			log.info("Copy done with {} mode for {}, mean speed: {}/sec", usedCopyMode, source, MainApp.byteCountToDisplaySizeWithPrecision(copyStat.getMeanSpeedBytesPerSec()));
+			log.debug("Write time by destination for {}: {} msec, cloned on {}", source, copyStat.getWriteDurationMsecBySlot(), copyStat.getClonedSlots());
 
 			/*for (final FileChannel destinationChannel : destinationChannels.keySet()) {
 				destinationChannel.force(true);
@@ -227,10 +219,11 @@ public class CopyOperation {
 		} catch (final IOException e) {
 			log.error("Can't process copy with " + source, e);
 			copyStat.setLastException(e);
-		} catch (final RuntimeException e) {
-			if (e.getCause() instanceof IOException) {
-				log.error("Can't process copy with " + source, e.getCause());
-				copyStat.setLastException((IOException) e.getCause());
+		} catch (final RuntimeException | ExecutionException e) {
+			final IOException ioException = searchIOExceptionCause(e);
+			if (ioException != null) {
+				log.error("Can't process copy with " + source, ioException);
+				copyStat.setLastException(ioException);
 			} else {
 				log.warn("Generic error for " + source, e);
 			}
@@ -243,7 +236,10 @@ public class CopyOperation {
 				try {
 					entry.getKey().close();
 
-					if (wantToStop == false) {
+					/**
+					 * After a stop or an error, the temp file is kept, for a later resume.
+					 */
+					if (wantToStop == false && copyStat.getLastException().isEmpty()) {
 						final File expectedFile = pathByFileChannel.get(entry.getKey()).toFile();
 						final File realCopiedFile = new File(expectedFile.getPath() + suffixCopyFileName);
 						FileUtils.moveFile(realCopiedFile, expectedFile);
@@ -268,29 +264,340 @@ public class CopyOperation {
 			}
 		} catch (final IOException e) {
 			log.error("Invalid copied file", e);
-			copyStat.setLastException((IOException) e.getCause());
+			copyStat.setLastException(e);
 		}
 
 		for (final Map.Entry<FileChannel, DestinationEntrySlot> entry : slotByFileChannel.entrySet()) {
 			entry.getValue().addLogHistoryOnEndCopy(pathByFileChannel.get(entry.getKey()).toFile());
 		}
+		linkedSlotsByPath.forEach((path, slot) -> slot.addLogHistoryOnEndCopy(path.toFile()));
+		clonedSlotsByPath.forEach((path, slot) -> slot.addLogHistoryOnEndCopy(path.toFile()));
 
-		final String computedDigest = byteToString(sourceMessageDigest.digest());
-		log.debug("Computed {} for {} is {}", sourceMessageDigest.getAlgorithm(), source, computedDigest);
-
-		Platform.runLater(() -> {
-			entryToCopy.setDigest(computedDigest);
-			entryToCopy.updateState();
-		});
+		/**
+		 * Empty digests will be computed later by the integrity check, if needed.
+		 */
+		log.debug("Computed digests for {} are {}", source, sourceDigests);
+		entryToCopy.setDigests(sourceDigests);
 
 		final long lastModified = source.toFile().lastModified();
-		slotsToCopyByPath.keySet().stream().forEach(path -> {
+		/**
+		 * A linked file shares its date with the previous copy.
+		 */
+		slotsToCopyByPath.keySet().stream().filter(path -> linkedSlotsByPath.containsKey(path) == false).forEach(path -> {
 			path.toFile().setLastModified(lastModified);
 		});
 
+		if (wantToStop == false && copyStat.getLastException().isEmpty()) {
+			slotsToCopyByPath.forEach((path, slot) -> slot.getDestination().addCopiedFile(path.toFile()));
+		}
+
+		/**
+		 * Probed here, after the last changes on the copies: only the new state is applied on the FX thread.
+		 */
+		final ProbedState probedState = entryToCopy.probeState(allDestinations);
+		Platform.runLater(() -> {
+			entryToCopy.applyState(probedState);
+		});
+
 		return new CopyOperationResult(entryToCopy, slotsToCopyByPath);
 	}
 
+	/**
+	 * With DedupMode.HARDLINK, the destination is a hard link to a file with the same content, elsewhere on the same destination.
+	 * @return false if there is no file to link, or if the destination filesystem refuses the link: the destination must be copied.
+	 */
+	private boolean linkSameContent(final Path destination, final DestinationEntrySlot slot) {
+		final File sameContent = sameContentBySlot.get(slot);
+		if (sameContent == null) {
+			return false;
+		}
+		try {
+			Files.createLink(destination, sameContent.toPath());
+			log.info("Link {} to the same content file {}, instead of copy it", destination, sameContent);
+			return true;
+		} catch (final IOException | UnsupportedOperationException e) {
+			log.warn("Can't link " + destination + " to " + sameContent + ", fall back to copy", e);
+			return false;
+		}
+	}
+
+	/**
+	 * For a destination on the same copy-on-write filesystem as the source: the copy is a clone, without datas read or write.
+	 * @return false if the destination must be copied.
+	 */
+	private boolean cloneSource(final Path destination, final DestinationEntrySlot slot) {
+		if (reflinkCloner.canClone(entryToCopy.getSource(), slot.getDestination()) == false) {
+			return false;
+		}
+		final long startDateNanoSec = System.nanoTime();
+		if (reflinkCloner.clone(source, destination, slot.getDestination(), () -> wantToStop) == false) {
+			return false;
+		}
+		copyStat.onClone(slot, copyStat.getSourceFileSizeBytes(), System.nanoTime() - startDateNanoSec);
+		log.info("Clone {} to {}, instead of copy it", source, destination);
+		return true;
+	}
+
+	/**
+	 * Hand a chunk to all the consumers (destination writers and source digests).
+	 */
+	@FunctionalInterface
+	private interface ChunkDispatcher {
+		/**
+		 * Blocking if a consumer queue is full.
+		 * @return done when the chunk is no longer used by all consumers
+		 */
+		CompletableFuture<Void> dispatch(ByteBuffer chunk) throws IOException, InterruptedException;
+	}
+
+	/**
+	 * Read the source, and dispatch each read chunk.
+	 */
+	@FunctionalInterface
+	private interface ChunkProducer {
+		/**
+		 * @return false if stopped
+		 */
+		boolean produce(ChunkDispatcher dispatcher) throws IOException, InterruptedException, ExecutionException;
+	}
+
+	/**
+	 * Read the source in the buffer ring, and push each chunk to all destinations and to the source digests.
+	 * @return false if stopped
+	 */
+	private boolean bufferedCopy(final FileChannel sourceChannel, final CopyBufferRing bufferRing, final List<Entry<FileChannel, DestinationEntrySlot>> allFileChannelSlots) throws IOException, InterruptedException, ExecutionException {
+		/**
+		 * The reader only waits when all the ring buffers are still used by the slowest queue.
+		 */
+		return queuedCopy(allFileChannelSlots, bufferRing.getDepth(), dispatcher -> {
+			long lastLoopDateNanoSec = System.nanoTime();
+			ByteBuffer currentBuffer = bufferRing.next();
+
+			while (sourceChannel.read(currentBuffer) > 0) {
+				if (wantToStop) {
+					return false;
+				}
+				currentBuffer.flip();
+				copyStat.onReadWriteLoop(currentBuffer.remaining(), System.nanoTime() - lastLoopDateNanoSec);
+				bufferRing.releaseOn(dispatcher.dispatch(currentBuffer));
+
+				currentBuffer = bufferRing.next();
+				lastLoopDateNanoSec = System.nanoTime();
+			}
+			return true;
+		});
+	}
+
+	/**
+	 * Second read pass on source, after a transfer copy, only for the source digests: the copy stats are already done.
+	 * @return false if stopped
+	 */
+	private boolean readSourceDigests(final FileChannel sourceChannel, final CopyBufferRing bufferRing) throws IOException, InterruptedException, ExecutionException {
+		sourceChannel.position(0);
+		return queuedCopy(List.of(), bufferRing.getDepth(), dispatcher -> {
+			ByteBuffer currentBuffer = bufferRing.next();
+			while (sourceChannel.read(currentBuffer) > 0) {
+				if (wantToStop) {
+					return false;
+				}
+				currentBuffer.flip();
+				bufferRing.releaseOn(dispatcher.dispatch(currentBuffer));
+				currentBuffer = bufferRing.next();
+			}
+			return true;
+		});
+	}
+
+	/**
+	 * @return null if the source filesystem refuses mmap: the caller should fall back to a buffered copy.
+	 */
+	private MappedByteBuffer mapFirstWindow(final FileChannel sourceChannel, final int chunkSize) {
+		try {
+			return sourceChannel.map(MapMode.READ_ONLY, 0, Math.min(getWindowSize(chunkSize), sourceChannel.size()));
+		} catch (final IOException | UnsupportedOperationException e) {
+			log.warn("Can't map " + source + ", fall back to buffered copy", e);
+			return null;
+		}
+	}
+
+	/**
+	 * @return mappedWindowSize aligned on chunk size
+	 */
+	private long getWindowSize(final int chunkSize) {
+		return Math.max(chunkSize, Math.min(mappedWindowSize, Integer.MAX_VALUE) / chunkSize * chunkSize);
+	}
+
+	/**
+	 * Map the source by windows, and push slices of each window to all destinations and to the source digests: no read syscalls, no copies in buffers.
+	 * Only two windows are mapped at the same time: the next window is mapped when the previous one is no longer used.
+	 * @param firstWindow already mapped, to check if the source filesystem accepts mmap before start the copy.
+	 * @return false if stopped
+	 */
+	private boolean mappedCopy(final FileChannel sourceChannel, final MappedByteBuffer firstWindow, final int chunkSize, final int queueCapacity, final List<Entry<FileChannel, DestinationEntrySlot>> allFileChannelSlots) throws IOException, InterruptedException, ExecutionException {
+		final long sourceSize = sourceChannel.size();
+		final long windowSize = getWindowSize(chunkSize);
+
+		return queuedCopy(allFileChannelSlots, queueCapacity, dispatcher -> {
+			long lastLoopDateNanoSec = System.nanoTime();
+			CompletableFuture<Void> previousWindowUnmap = CompletableFuture.completedFuture(null);
+
+			for (long windowPosition = 0; windowPosition < sourceSize; windowPosition += windowSize) {
+				final MappedByteBuffer window;
+				if (windowPosition == 0) {
+					window = firstWindow;
+				} else {
+					window = sourceChannel.map(MapMode.READ_ONLY, windowPosition, Math.min(windowSize, sourceSize - windowPosition));
+				}
+
+				final List<CompletableFuture<Void>> windowReleases = new ArrayList<>();
+				final CompletableFuture<Void> windowUnmap;
+				try {
+					for (long chunkPosition = 0; chunkPosition < window.capacity(); chunkPosition += chunkSize) {
+						if (wantToStop) {
+							return false;
+						}
+						final ByteBuffer chunk = window.duplicate();
+						chunk.position((int) chunkPosition);
+						chunk.limit((int) Math.min(chunkPosition + chunkSize, window.capacity()));
+
+						copyStat.onReadWriteLoop(chunk.remaining(), System.nanoTime() - lastLoopDateNanoSec);
+						windowReleases.add(dispatcher.dispatch(chunk.slice()));
+						lastLoopDateNanoSec = System.nanoTime();
+					}
+				} finally {
+					/**
+					 * Unmap only when all the window slices are no longer used, even on stop or on error.
+					 */
+					windowUnmap = CompletableFuture.allOf(windowReleases.toArray(CompletableFuture<?>[]::new)).thenRun(() -> {
+						MappedBufferUnmapper.unmap(window);
+					});
+				}
+
+				previousWindowUnmap.get();
+				previousWindowUnmap = windowUnmap;
+			}
+			return true;
+		});
+	}
+
+	/**
+	 * Each destination consumes the read chunks at its own pace, in its own queue, like each source digest.
+	 * @param queueCapacity max chunks waiting for each consumer
+	 * @return false if stopped
+	 */
+	private boolean queuedCopy(final List<Entry<FileChannel, DestinationEntrySlot>> allFileChannelSlots, final int queueCapacity, final ChunkProducer producer) throws IOException, InterruptedException, ExecutionException {
+		final Map<DestinationEntrySlot, ChunkConsumerQueue> writerBySlot = new LinkedHashMap<>();
+		final List<DestinationChunkWriter> destinationWriters = new ArrayList<>();
+		for (final Entry<FileChannel, DestinationEntrySlot> entry : allFileChannelSlots) {
+			final DestinationChunkWriter destinationWriter = new DestinationChunkWriter(entry.getKey(), entry.getValue(), copyStat);
+			destinationWriters.add(destinationWriter);
+			writerBySlot.put(entry.getValue(), new ChunkConsumerQueue(queueCapacity, chunk -> {
+				if (wantToStop) {
+					return;
+				}
+				destinationWriter.write(chunk);
+			}, writeExecutor));
+		}
+		final DigestPipeline sourceDigestPipeline = new DigestPipeline(queueCapacity, writeExecutor, () -> wantToStop);
+		final List<ChunkConsumerQueue> allWriters = new ArrayList<>(writerBySlot.values());
+
+		final ChunkDispatcher dispatcher = chunk -> {
+			/**
+			 * Check errors before the dispatch: a dispatched chunk must always be tracked by the returned release.
+			 */
+			for (final ChunkConsumerQueue writer : allWriters) {
+				if (writer.getLastException() != null) {
+					throw writer.getLastException();
+				}
+			}
+
+			final CompletableFuture<Void> release = new CompletableFuture<>();
+			final AtomicInteger chunkUsers = new AtomicInteger(allWriters.size() + sourceDigestPipeline.size());
+			final Runnable onRelease = () -> {
+				if (chunkUsers.decrementAndGet() == 0) {
+					release.complete(null);
+				}
+			};
+
+			for (final Map.Entry<DestinationEntrySlot, ChunkConsumerQueue> entry : writerBySlot.entrySet()) {
+				entry.getValue().put(chunk, onRelease);
+				copyStat.onWriteQueueDepth(entry.getKey(), entry.getValue().getDepth());
+			}
+			sourceDigestPipeline.put(chunk, onRelease);
+			return release;
+		};
+
+		try {
+			if (producer.produce(dispatcher) == false) {
+				return false;
+			}
+
+			/**
+			 * Wait to the last ends writes
+			 */
+			for (final ChunkConsumerQueue writer : allWriters) {
+				writer.close().get();
+				if (writer.getLastException() != null) {
+					throw writer.getLastException();
+				}
+			}
+			for (final DestinationChunkWriter destinationWriter : destinationWriters) {
+				destinationWriter.end();
+			}
+			sourceDigests = sourceDigestPipeline.getDigests();
+			return true;
+		} finally {
+			allWriters.forEach(ChunkConsumerQueue::close);
+			sourceDigestPipeline.close();
+			log.debug("Max write queue depth by destination for {}: {}", source, copyStat.getMaxWriteQueueDepthBySlot());
+		}
+	}
+
+	/**
+	 * Zero-copy: let the OS moves the datas from source to destination, without user-space buffers.
+	 * @return false if stopped
+	 */
+	private boolean transferCopy(final FileChannel sourceChannel, final FileChannel destination, final DestinationEntrySlot slot, final int chunkSize) throws IOException {
+		final long sourceSize = sourceChannel.size();
+		long position = 0;
+		long lastLoopDateNanoSec = System.nanoTime();
+
+		while (position < sourceSize) {
+			if (wantToStop) {
+				return false;
+			}
+			final long transfered = sourceChannel.transferTo(position, Math.min(chunkSize, sourceSize - position), destination);
+			if (transfered < 1) {
+				/**
+				 * Source has been truncated during the copy: copied size check will fail after.
+				 */
+				break;
+			}
+			position += transfered;
+
+			final long now = System.nanoTime();
+			copyStat.onReadWriteLoop(transfered, now - lastLoopDateNanoSec);
+			copyStat.onWrite(slot, transfered, now - lastLoopDateNanoSec);
+			lastLoopDateNanoSec = now;
+		}
+		return true;
+	}
+
+	/**
+	 * Errors from writes are wrapped by RuntimeException and CompletionException/ExecutionException.
+	 * @return null if not found
+	 */
+	private static IOException searchIOExceptionCause(final Throwable e) {
+		Throwable cause = e;
+		while (cause != null) {
+			if (cause instanceof IOException) {
+				return (IOException) cause;
+			}
+			cause = cause.getCause();
+		}
+		return null;
+	}
+
 	public static final String byteToString(final byte[] b) {
 		final StringBuffer sb = new StringBuffer();
 		for (int i = 0; i < b.length; i++) {
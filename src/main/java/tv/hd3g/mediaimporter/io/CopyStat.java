@@ -17,31 +17,57 @@
 package tv.hd3g.mediaimporter.io;
 
 import java.io.IOException;
+import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Collectors;
 
 import tv.hd3g.mediaimporter.DestinationEntrySlot;
 import tv.hd3g.mediaimporter.FileEntry;
 
+/**
+ * Lock-free: updated by the copy threads on each read/write loop, and read by the display thread.
+ * Each update is also pushed to the global aggregates (see GlobalCopyStat), so the display never have to walk all the files.
+ */
 public class CopyStat {
 	private final CopyOperation referer;
 
 	private final long sourceFileSizeBytes;
 
-	private long startDateMsec;
-	private long lastLoopDateMsec;
-	private long totalReadedBytes;
-	private long endDateMsec;
+	private volatile long startDateMsec;
+	private volatile long lastLoopDateMsec;
+	private final LongAdder totalReadedBytes;
+	private volatile long endDateMsec;
 
-	private long lastReadWriteLoopReadedBytes;
-	private long lastReadWriteLoopTimeNanoSec;
+	private volatile long lastReadWriteLoopReadedBytes;
+	private volatile long lastReadWriteLoopTimeNanoSec;
 
-	private IOException lastException;
+	private volatile IOException lastException;
+	private final AtomicBoolean doneReported;
+	private volatile List<GlobalCopyStat.Aggregate> aggregates;
+
+	private final ConcurrentHashMap<DestinationEntrySlot, AtomicInteger> writeQueueDepthBySlot;
+	private final ConcurrentHashMap<DestinationEntrySlot, AtomicInteger> maxWriteQueueDepthBySlot;
+	private final ConcurrentHashMap<DestinationEntrySlot, LongAdder> writeDurationNanoSecBySlot;
+	private final Set<DestinationEntrySlot> clonedSlots;
 
 	CopyStat(final CopyOperation referer, final long sourceFileSizeBytes) {
 		this.referer = referer;
 		this.sourceFileSizeBytes = sourceFileSizeBytes;
 		startDateMsec = -1;
 		endDateMsec = -1;
+		totalReadedBytes = new LongAdder();
+		doneReported = new AtomicBoolean(false);
+		aggregates = List.of();
+		writeQueueDepthBySlot = new ConcurrentHashMap<>();
+		maxWriteQueueDepthBySlot = new ConcurrentHashMap<>();
+		writeDurationNanoSecBySlot = new ConcurrentHashMap<>();
+		clonedSlots = ConcurrentHashMap.newKeySet();
 	}
 
 	FileEntry getFileEntry() {
@@ -52,81 +78,126 @@ public class CopyStat {
 		return referer;
 	}
 
-	synchronized void onReadWriteLoop(final long loopReadedBytes, final long loopTimeNanoSec) {
-		lastLoopDateMsec = System.currentTimeMillis();
-		totalReadedBytes += loopReadedBytes;
+	/**
+	 * Set before the copy starts.
+	 */
+	void setAggregates(final List<GlobalCopyStat.Aggregate> aggregates) {
+		this.aggregates = List.copyOf(aggregates);
+	}
+
+	void onReadWriteLoop(final long loopReadedBytes, final long loopTimeNanoSec) {
+		final long now = System.currentTimeMillis();
+		lastLoopDateMsec = now;
+		totalReadedBytes.add(loopReadedBytes);
 		lastReadWriteLoopReadedBytes = loopReadedBytes;
 		lastReadWriteLoopTimeNanoSec = loopTimeNanoSec;
+		for (final GlobalCopyStat.Aggregate aggregate : aggregates) {
+			aggregate.onReadWriteLoop(loopReadedBytes, now);
+		}
+		checkDone();
 	}
 
-	synchronized void onStart() {
+	void onStart() {
 		startDateMsec = System.currentTimeMillis();
+		aggregates.forEach(aggregate -> aggregate.onStart(this, startDateMsec));
 	}
 
-	synchronized void onEnd() {
+	void onEnd() {
 		endDateMsec = System.currentTimeMillis();
+		aggregates.forEach(aggregate -> aggregate.onEnd(this, endDateMsec));
+		checkDone();
+	}
+
+	/**
+	 * Report only one time to the aggregates.
+	 */
+	private void checkDone() {
+		if (isDone() && doneReported.compareAndSet(false, true)) {
+			aggregates.forEach(aggregate -> aggregate.onDone(this));
+		}
 	}
 
 	void onWrite(final DestinationEntrySlot currentSlot, final long datasBytes, final long durationNanoSec) {
 		currentSlot.getCopiedDatasBytes().addAndGet(datasBytes);
 		currentSlot.getCopiedDurationsNanoSec().addAndGet(durationNanoSec);
+		writeDurationNanoSecBySlot.computeIfAbsent(currentSlot, s -> new LongAdder()).add(durationNanoSec);
 	}
 
-	synchronized CopyStat setLastException(final IOException lastException) {
+	/**
+	 * The whole file is "written" in one time on this destination, by a filesystem clone.
+	 */
+	void onClone(final DestinationEntrySlot currentSlot, final long datasBytes, final long durationNanoSec) {
+		clonedSlots.add(currentSlot);
+		onWrite(currentSlot, datasBytes, durationNanoSec);
+	}
+
+	/**
+	 * @param depth chunks waiting to be written on this destination
+	 */
+	void onWriteQueueDepth(final DestinationEntrySlot currentSlot, final int depth) {
+		writeQueueDepthBySlot.computeIfAbsent(currentSlot, s -> new AtomicInteger()).set(depth);
+		maxWriteQueueDepthBySlot.computeIfAbsent(currentSlot, s -> new AtomicInteger()).accumulateAndGet(depth, Math::max);
+	}
+
+	CopyStat setLastException(final IOException lastException) {
 		this.lastException = lastException;
+		checkDone();
 		return this;
 	}
 
-	public synchronized long getTotalReadedBytes() {
-		return totalReadedBytes;
+	public long getTotalReadedBytes() {
+		return totalReadedBytes.sum();
 	}
 
 	public long getSourceFileSizeBytes() {
 		return sourceFileSizeBytes;
 	}
 
-	public synchronized boolean isDone() {
-		return totalReadedBytes == sourceFileSizeBytes || lastException != null;
+	public boolean isDone() {
+		return totalReadedBytes.sum() == sourceFileSizeBytes || lastException != null;
 	}
 
-	public synchronized boolean isStarted() {
+	public boolean isStarted() {
 		return startDateMsec > 0;
 	}
 
-	public synchronized boolean isWaiting() {
+	public boolean isWaiting() {
 		return startDateMsec == -1;
 	}
 
-	public synchronized long getStartDateMsec() {
+	public long getStartDateMsec() {
 		return startDateMsec;
 	}
 
-	public synchronized long getEndDateMsec() {
+	public long getEndDateMsec() {
 		return endDateMsec;
 	}
 
-	public synchronized long getLastUpdateDateMsec() {
+	public long getLastUpdateDateMsec() {
 		if (isStarted() == false) {
 			throw new RuntimeException("Can't get result before copy starts");
 		}
 		return lastLoopDateMsec;
 	}
 
-	public synchronized long getInstantSpeedBytesPerSec() {
+	/**
+	 * The last loop bytes and duration are not read atomically: close enough for a display.
+	 */
+	public long getInstantSpeedBytesPerSec() {
 		if (isStarted() == false) {
 			throw new RuntimeException("Can't get result before copy starts");
 		}
 		return Math.round((double) lastReadWriteLoopReadedBytes / (double) lastReadWriteLoopTimeNanoSec * 1_000_000_000d);
 	}
 
-	public synchronized long getMeanSpeedBytesPerSec() {
+	public long getMeanSpeedBytesPerSec() {
 		if (isStarted() == false) {
 			throw new RuntimeException("Can't get result before copy starts");
 		}
-		return Math.round(totalReadedBytes / (double) (lastLoopDateMsec - startDateMsec) * 1000d);
+		return Math.round(getTotalReadedBytes() / (double) (lastLoopDateMsec - startDateMsec) * 1000d);
 	}
 
-	public synchronized long getETAMsec() {
+	public long getETAMsec() {
 		if (isStarted() == false) {
 			throw new RuntimeException("Can't get result before copy starts");
 		}
@@ -134,10 +205,38 @@ public class CopyStat {
 		if (meanSpeed == 0) {
 			return 0;
 		}
-		return Math.round((sourceFileSizeBytes - totalReadedBytes) / meanSpeed * 1000d) + 1000;
+		return Math.round((sourceFileSizeBytes - getTotalReadedBytes()) / meanSpeed * 1000d) + 1000;
+	}
+
+	/**
+	 * @return last known chunks count waiting to be written, by destination
+	 */
+	public Map<DestinationEntrySlot, Integer> getWriteQueueDepthBySlot() {
+		return writeQueueDepthBySlot.entrySet().stream().collect(Collectors.toUnmodifiableMap(Map.Entry::getKey, entry -> entry.getValue().get()));
+	}
+
+	/**
+	 * @return max chunks count waiting to be written during the copy, by destination
+	 */
+	public Map<DestinationEntrySlot, Integer> getMaxWriteQueueDepthBySlot() {
+		return maxWriteQueueDepthBySlot.entrySet().stream().collect(Collectors.toUnmodifiableMap(Map.Entry::getKey, entry -> entry.getValue().get()));
+	}
+
+	/**
+	 * @return time spent to write (or clone) this file, by destination
+	 */
+	public Map<DestinationEntrySlot, Long> getWriteDurationMsecBySlot() {
+		return writeDurationNanoSecBySlot.entrySet().stream().collect(Collectors.toUnmodifiableMap(Map.Entry::getKey, entry -> entry.getValue().sum() / 1_000_000l));
+	}
+
+	/**
+	 * @return destinations where this file was cloned instead of copied
+	 */
+	public Set<DestinationEntrySlot> getClonedSlots() {
+		return Set.copyOf(clonedSlots);
 	}
 
-	public synchronized Optional<IOException> getLastException() {
+	public Optional<IOException> getLastException() {
 		return Optional.ofNullable(lastException);
 	}
 }
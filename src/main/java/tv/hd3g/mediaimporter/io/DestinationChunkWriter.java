@@ -0,0 +1,97 @@
+/*
+ * This file is part of mediaimporter.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * Copyright (C) hdsdi3g for hd3g.tv 2019
+ *
+*/
+package tv.hd3g.mediaimporter.io;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import tv.hd3g.mediaimporter.DestinationEntrySlot;
+
+/**
+ * Write the read chunks, in order, to a destination temp file.
+ * If this file is not empty (an interrupted copy), the chunks are first compared with its content: the writes only start after the same content.
+ * Not thread safe: only for a single ChunkConsumerQueue.
+ */
+class DestinationChunkWriter {
+	private static Logger log = LogManager.getLogger();
+
+	private final FileChannel destination;
+	private final DestinationEntrySlot slot;
+	private final CopyStat copyStat;
+	private long position;
+	private long resumableLength;
+	private ByteBuffer compareBuffer;
+
+	DestinationChunkWriter(final FileChannel destination, final DestinationEntrySlot slot, final CopyStat copyStat) throws IOException {
+		this.destination = destination;
+		this.slot = slot;
+		this.copyStat = copyStat;
+		resumableLength = destination.size();
+	}
+
+	void write(final ByteBuffer chunk) throws IOException {
+		final int size = chunk.remaining();
+		if (position + size <= resumableLength && isSameContent(chunk)) {
+			position += size;
+			return;
+		}
+		if (resumableLength > position) {
+			log.info("Resume copy to {} from {} byte(s)", slot, position);
+			destination.truncate(position);
+			resumableLength = position;
+			compareBuffer = null;
+		}
+
+		final long timeBeforeWrite = System.nanoTime();
+		while (chunk.hasRemaining()) {
+			position += destination.write(chunk, position);
+		}
+		copyStat.onWrite(slot, size, System.nanoTime() - timeBeforeWrite);
+	}
+
+	private boolean isSameContent(final ByteBuffer chunk) throws IOException {
+		if (compareBuffer == null || compareBuffer.capacity() < chunk.remaining()) {
+			compareBuffer = ByteBuffer.allocate(chunk.remaining());
+		}
+		compareBuffer.clear();
+		compareBuffer.limit(chunk.remaining());
+		while (compareBuffer.hasRemaining()) {
+			if (destination.read(compareBuffer, position + compareBuffer.position()) < 0) {
+				return false;
+			}
+		}
+		compareBuffer.flip();
+		return compareBuffer.equals(chunk);
+	}
+
+	/**
+	 * Remove the old content after the last written chunk.
+	 */
+	void end() throws IOException {
+		if (destination.size() > position) {
+			destination.truncate(position);
+		}
+		if (resumableLength > 0) {
+			log.info("Copy to {} was resumed after {} byte(s)", slot, Math.min(resumableLength, position));
+		}
+	}
+
+}
@@ -0,0 +1,142 @@
+/*
+ * This file is part of mediaimporter.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * Copyright (C) hdsdi3g for hd3g.tv 2019
+ *
+*/
+package tv.hd3g.mediaimporter.io;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+import java.util.stream.Collectors;
+
+import tv.hd3g.mediaimporter.MainClass;
+
+/**
+ * Compute all the configured digests (MainClass.DIGEST_NAMES) on the same chunks.
+ * Each digest runs concurrently in its own queue and worker: the slowest digest sets the pace, not the sum of all.
+ */
+class DigestPipeline {
+
+	private final Map<MessageDigest, ChunkConsumerQueue> queueByDigest;
+	private Map<String, List<String>> chunkDigestsByAlgorithm;
+
+	/**
+	 * @param executor must have a free thread for each digest, during all the pipeline life.
+	 */
+	DigestPipeline(final int queueCapacity, final Executor executor, final BooleanSupplier wantToStop) {
+		queueByDigest = new LinkedHashMap<>();
+		chunkDigestsByAlgorithm = Map.of();
+		Arrays.stream(MainClass.DIGEST_NAMES).forEach(digestName -> {
+			final MessageDigest digest;
+			try {
+				digest = MessageDigest.getInstance(digestName);
+			} catch (final NoSuchAlgorithmException e) {
+				throw new RuntimeException("Can't init " + digestName + " Digest", e);
+			}
+			queueByDigest.put(digest, new ChunkConsumerQueue(queueCapacity, chunk -> {
+				if (wantToStop.getAsBoolean()) {
+					return;
+				}
+				digest.update(chunk);
+			}, executor));
+		});
+	}
+
+	/**
+	 * @return consumers count: onRelease will be called this count of times by put().
+	 */
+	int size() {
+		return queueByDigest.size();
+	}
+
+	/**
+	 * Blocking if a digest queue is full.
+	 * @param onRelease called by each digest, when it no longer uses the chunk
+	 */
+	void put(final ByteBuffer chunk, final Runnable onRelease) throws IOException, InterruptedException {
+		throwLastException();
+		for (final ChunkConsumerQueue queue : queueByDigest.values()) {
+			queue.put(chunk, onRelease);
+		}
+	}
+
+	/**
+	 * Blocking if a digest queue is full.
+	 * @return done when all the digests no longer use the chunk
+	 */
+	CompletableFuture<Void> update(final ByteBuffer chunk) throws IOException, InterruptedException {
+		final CompletableFuture<Void> release = new CompletableFuture<>();
+		final AtomicInteger chunkUsers = new AtomicInteger(size());
+		put(chunk, () -> {
+			if (chunkUsers.decrementAndGet() == 0) {
+				release.complete(null);
+			}
+		});
+		return release;
+	}
+
+	private void throwLastException() throws IOException {
+		for (final ChunkConsumerQueue queue : queueByDigest.values()) {
+			if (queue.getLastException() != null) {
+				throw queue.getLastException();
+			}
+		}
+	}
+
+	/**
+	 * Wait all queued chunks.
+	 * @return hex digest by algorithm name
+	 */
+	Map<String, String> getDigests() throws IOException, InterruptedException, ExecutionException {
+		for (final ChunkConsumerQueue queue : queueByDigest.values()) {
+			queue.close().get();
+		}
+		throwLastException();
+		final Map<String, String> digests = queueByDigest.keySet().stream().collect(Collectors.toUnmodifiableMap(MessageDigest::getAlgorithm, digest -> {
+			return CopyOperation.byteToString(digest.digest());
+		}));
+
+		chunkDigestsByAlgorithm = queueByDigest.keySet().stream().filter(digest -> digest instanceof SHA256TreeDigest).collect(Collectors.toUnmodifiableMap(MessageDigest::getAlgorithm, digest -> {
+			return ((SHA256TreeDigest) digest).getLastChunkDigests();
+		}));
+		return digests;
+	}
+
+	/**
+	 * Only for tree digests, after getDigests().
+	 * @return hex chunk digests, in file order, by algorithm name
+	 */
+	Map<String, List<String>> getChunkDigests() {
+		return chunkDigestsByAlgorithm;
+	}
+
+	/**
+	 * Don't wait, can be called more than once.
+	 */
+	void close() {
+		queueByDigest.values().forEach(ChunkConsumerQueue::close);
+	}
+
+}
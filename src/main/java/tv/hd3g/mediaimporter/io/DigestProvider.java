@@ -0,0 +1,46 @@
+/*
+ * This file is part of mediaimporter.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * Copyright (C) hdsdi3g for hd3g.tv 2019
+ *
+*/
+package tv.hd3g.mediaimporter.io;
+
+import java.security.Provider;
+import java.security.Security;
+
+/**
+ * Add the non-JDK digests to java.security.MessageDigest, usable by name in "integrity.digest.names" like the JDK ones (MD5, SHA-256...):
+ * - XXH64: fast, non-cryptographic
+ * - SHA256TREE: SHA-256 Merkle tree, computed in parallel on chunks of a same file
+ * Each digest is written in its own sum file by the integrity check (like XXH64SUM).
+ */
+public class DigestProvider extends Provider {
+	private static final long serialVersionUID = 1L;
+
+	public DigestProvider() {
+		super("MediaImporter", "1.0", "MediaImporter digests (XXH64, SHA256TREE)");
+		put("MessageDigest.XXH64", XXH64Digest.class.getName());
+		put("MessageDigest." + SHA256TreeDigest.ALGORITHM, SHA256TreeDigest.class.getName());
+	}
+
+	/**
+	 * Can be called more than once.
+	 */
+	public static synchronized void register() {
+		if (Security.getProvider("MediaImporter") == null) {
+			Security.addProvider(new DigestProvider());
+		}
+	}
+
+}
@@ -18,56 +18,147 @@ package tv.hd3g.mediaimporter.io;
 
 import java.io.IOException;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.function.Predicate;
 import java.util.stream.Collectors;
 
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
 import javafx.application.Platform;
 import tv.hd3g.mediaimporter.DestinationEntrySlot;
 import tv.hd3g.mediaimporter.ui.UIProgresser;
 
 public class GlobalCopyStat {
-	private final List<CopyStat> items;
+	private static Logger log = LogManager.getLogger();
+
+	private final Aggregate global;
+	private final Map<String, Aggregate> aggregateBySourceDevice;
 	private final List<DestinationEntrySlot> slotList;
 
 	private final UIProgresser ui;
 	private final int totalFiles;
 	private final long totalDatasBytes;
-	private final long startDate;
 
-	GlobalCopyStat(final List<CopyStat> items, final UIProgresser ui) {
-		this.items = items;
+	GlobalCopyStat(final Map<String, List<CopyStat>> itemsBySourceDevice, final UIProgresser ui) {
+		final List<CopyStat> items = itemsBySourceDevice.values().stream().flatMap(List::stream).collect(Collectors.toUnmodifiableList());
 		this.ui = ui;
 		totalFiles = items.size();
 		totalDatasBytes = items.stream().mapToLong(CopyStat::getSourceFileSizeBytes).sum();
-		startDate = -1;
+
+		global = new Aggregate();
+		aggregateBySourceDevice = itemsBySourceDevice.entrySet().stream().collect(Collectors.toUnmodifiableMap(Map.Entry::getKey, entry -> {
+			final Aggregate deviceAggregate = new Aggregate();
+			entry.getValue().forEach(copyStat -> copyStat.setAggregates(List.of(global, deviceAggregate)));
+			return deviceAggregate;
+		}));
 
 		slotList = items.stream().map(CopyStat::getReferer).map(CopyOperation::getDestinationListToCopy).flatMap(slotList -> slotList.stream()).distinct().collect(Collectors.toUnmodifiableList());
 	}
 
-	synchronized long getSetStartDate() {
-		if (startDate == -1) {
-			return items.stream().filter(CopyStat::isStarted).mapToLong(CopyStat::getStartDateMsec).min().orElse(-1);
+	/**
+	 * Stats of a set of copies, updated by each CopyStat (from the copy threads), without locks.
+	 * Only the running copies are kept.
+	 */
+	static class Aggregate {
+		private final LongAdder readedBytes;
+		private final LongAdder doneFiles;
+		private final LongAccumulator minStartDateMsec;
+		private final LongAccumulator maxUpdateDateMsec;
+		private final LongAccumulator maxEndDateMsec;
+		private final Set<CopyStat> activeItems;
+
+		private Aggregate() {
+			readedBytes = new LongAdder();
+			doneFiles = new LongAdder();
+			minStartDateMsec = new LongAccumulator(Math::min, Long.MAX_VALUE);
+			maxUpdateDateMsec = new LongAccumulator(Math::max, -1);
+			maxEndDateMsec = new LongAccumulator(Math::max, -1);
+			activeItems = ConcurrentHashMap.newKeySet();
+		}
+
+		void onStart(final CopyStat copyStat, final long startDateMsec) {
+			minStartDateMsec.accumulate(startDateMsec);
+			activeItems.add(copyStat);
+		}
+
+		void onReadWriteLoop(final long loopReadedBytes, final long dateMsec) {
+			readedBytes.add(loopReadedBytes);
+			maxUpdateDateMsec.accumulate(dateMsec);
+		}
+
+		void onDone(final CopyStat copyStat) {
+			doneFiles.increment();
+			activeItems.remove(copyStat);
+		}
+
+		void onEnd(final CopyStat copyStat, final long endDateMsec) {
+			maxEndDateMsec.accumulate(endDateMsec);
+			activeItems.remove(copyStat);
+		}
+
+		/**
+		 * @return -1 if nothing has started
+		 */
+		private long getStartDate() {
+			final long startDate = minStartDateMsec.get();
+			if (startDate == Long.MAX_VALUE) {
+				return -1;
+			}
+			return startDate;
+		}
+
+		private long getMeanSpeed() {
+			final long startDate = getStartDate();
+			final long lastUpdateDate = maxUpdateDateMsec.get();
+			if (lastUpdateDate <= startDate) {
+				return 0l;
+			}
+			return Math.round(readedBytes.sum() / (double) (lastUpdateDate - startDate) * 1000d);
 		}
-		return startDate;
 	}
 
-	synchronized long getEndDate() {
-		return items.stream().filter(CopyStat::isStarted).mapToLong(CopyStat::getEndDateMsec).max().orElse(-1);
+	long getSetStartDate() {
+		return global.getStartDate();
 	}
 
+	long getEndDate() {
+		return global.maxEndDateMsec.get();
+	}
+
+	/**
+	 * @return source device name -> mean read speed in bytes/sec, since the first started copy on each device
+	 */
+	Map<String, Long> getMeanSpeedBySourceDevice() {
+		return aggregateBySourceDevice.entrySet().stream().collect(Collectors.toUnmodifiableMap(Map.Entry::getKey, entry -> entry.getValue().getMeanSpeed()));
+	}
+
+	/**
+	 * Only walk the running copies.
+	 */
 	void refresh() {
-		final int filesCopied = (int) items.stream().filter(CopyStat::isDone).count();
-		final long datasCopiedBytes = items.stream().mapToLong(CopyStat::getTotalReadedBytes).sum();
+		final int filesCopied = (int) global.doneFiles.sum();
+		final long datasCopiedBytes = global.readedBytes.sum();
 		final double progressRate = (double) datasCopiedBytes / (double) totalDatasBytes;
-		final long timeElapsedMsec = items.stream().filter(CopyStat::isStarted).mapToLong(CopyStat::getLastUpdateDateMsec).max().orElse(-1l) - getSetStartDate();
+		final long timeElapsedMsec = global.maxUpdateDateMsec.get() - getSetStartDate();
 		final double meanCopySpeedBytesPerSec = datasCopiedBytes / (double) timeElapsedMsec * 1000d;
-		final Optional<CopyStat> currentCopyStat = items.stream().filter(CopyStat::isStarted).filter(Predicate.not(CopyStat::isDone)).findFirst();
-		final long instantCopySpeedBytesPerSec = currentCopyStat.map(CopyStat::getInstantSpeedBytesPerSec).orElse(0l);
+		/**
+		 * Some copies can run in parallel
+		 */
+		final List<CopyStat> currentCopyStats = global.activeItems.stream().filter(CopyStat::isStarted).filter(Predicate.not(CopyStat::isDone)).collect(Collectors.toUnmodifiableList());
+		final long instantCopySpeedBytesPerSec = currentCopyStats.stream().mapToLong(CopyStat::getInstantSpeedBytesPerSec).sum();
 		final long etaMsec = Math.round((totalDatasBytes - datasCopiedBytes) / meanCopySpeedBytesPerSec * 1000d) + 1000;
+		if (aggregateBySourceDevice.size() > 1) {
+			log.debug("Read speed by source device: {}", this::getMeanSpeedBySourceDevice);
+		}
 
 		Platform.runLater(() -> {
-			currentCopyStat.ifPresent(copyStat -> {
+			currentCopyStats.forEach(copyStat -> {
 				final long currentEtaMsec = copyStat.getETAMsec();
 				final long meanSpeed = copyStat.getMeanSpeedBytesPerSec();
 				final long readedBytes = copyStat.getTotalReadedBytes();
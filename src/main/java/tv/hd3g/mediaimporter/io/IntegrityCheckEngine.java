@@ -19,143 +19,275 @@ package tv.hd3g.mediaimporter.io;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
+import java.nio.file.FileStore;
+import java.nio.file.Files;
 import java.nio.file.OpenOption;
 import java.nio.file.Path;
 import java.nio.file.StandardOpenOption;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
-import java.util.Arrays;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
+import java.util.Optional;
 import java.util.Set;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Executor;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.SynchronousQueue;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
 import java.util.stream.Collectors;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
+import com.sun.nio.file.ExtendedOpenOption;
+
 import javafx.application.Platform;
 import tv.hd3g.mediaimporter.DestinationEntrySlot;
 import tv.hd3g.mediaimporter.FileEntry;
-import tv.hd3g.mediaimporter.MainClass;
 
 public class IntegrityCheckEngine implements CanBeStopped {
 	private static Logger log = LogManager.getLogger();
 	private static final Set<OpenOption> OPEN_OPTIONS_READ_ONLY = Set.of(StandardOpenOption.READ);
+	private static final Set<OpenOption> OPEN_OPTIONS_READ_DIRECT = Set.of(StandardOpenOption.READ, ExtendedOpenOption.DIRECT);
+	private static final Set<String> NETWORK_FILESTORE_TYPES = Set.of("nfs", "nfs4", "cifs", "smbfs", "smb2", "afpfs", "webdav", "fuse.sshfs");
 
-	private final Map<DestinationEntrySlot, List<ToCheck>> toCheckBySlots;
 	private final ThreadPoolExecutor executor;
-	private final Map<FileEntry, List<ToCheck>> toCheckListBySources;
+	private final ThreadPoolExecutor digestExecutor;
+	private final Map<FileEntry, SourceChecks> toCheckListBySources;
+	private final Map<DestinationEntrySlot, SlotCheckQueue> checkQueueBySlots;
+	private final int parallelChecksByDestination;
+	private final IntegrityReadMode readMode;
+	private final Set<FileStore> directReadRefusedStores;
+	private final long bufferBudgetBytes;
+	private final int defaultChunkSize;
+	private final Map<FileStore, Integer> chunkSizeByStore;
 
 	private volatile boolean wantToStop;
 	private CompletableFuture<?> currentTask;
 
+	/**
+	 * Not reusable.
+	 * Add each copied file with add(), checks start immediately, while the copied file is still in the OS cache.
+	 */
+	public IntegrityCheckEngine() {
+		toCheckListBySources = new ConcurrentHashMap<>();
+		checkQueueBySlots = new LinkedHashMap<>();
+		readMode = IntegrityReadMode.getFromConfig();
+		directReadRefusedStores = ConcurrentHashMap.newKeySet();
+		log.debug("Use {} read mode for integrity checks", readMode);
+
+		/**
+		 * Each running check reads with its own buffer ring (taken from a shared pool), limited by a memory budget:
+		 * the next buffers are read while the digests are computed on the previous.
+		 */
+		bufferBudgetBytes = Long.getLong("integrity.buffer.budget", 32 * 1024 * 1024);
+		defaultChunkSize = Integer.getInteger("integrity.buffer.chunksize", 4 * 1024 * 1024);
+		chunkSizeByStore = new ConcurrentHashMap<>();
+
+		final AtomicLong counter = new AtomicLong();
+		final int size = Runtime.getRuntime().availableProcessors();
+		executor = new ThreadPoolExecutor(size, size, 1l, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), r -> {
+			final Thread t = new Thread(r);
+			t.setDaemon(true);
+			t.setName("Check operation #" + counter.getAndIncrement());
+			return t;
+		});
+		executor.allowCoreThreadTimeOut(true);
+
+		/**
+		 * Checks on a same destination can run in parallel (fast RAID, NVMe...), "auto" by default: tuned from the measured throughput.
+		 */
+		final String parallelChecks = System.getProperty("integrity.parallel.by.destination", "auto").trim();
+		if (parallelChecks.equalsIgnoreCase("auto")) {
+			parallelChecksByDestination = 0;
+		} else {
+			parallelChecksByDestination = Math.max(1, Integer.parseInt(parallelChecks));
+		}
+
+		/**
+		 * Each check operation needs a thread for each digest, during all the file read.
+		 */
+		final AtomicLong digestCounter = new AtomicLong();
+		digestExecutor = new ThreadPoolExecutor(0, Integer.MAX_VALUE, 10l, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(), r -> {
+			final Thread t = new Thread(r);
+			t.setDaemon(true);
+			t.setName("Check digest #" + digestCounter.getAndIncrement());
+			return t;
+		});
+	}
+
 	/**
 	 * Not reusable
 	 */
 	public IntegrityCheckEngine(final List<CopyOperationResult> copiedList) {
+		this();
 		Objects.requireNonNull(copiedList, "\"copiedList\" can't to be null");
 
 		log.debug("Get copiedList source {}", () -> {
 			return copiedList.stream().map(cl -> cl.getSourceEntry().getRelativePath()).collect(Collectors.toUnmodifiableList());
 		});
+		copiedList.forEach(this::add);
+	}
 
-		final List<DestinationEntrySlot> slots = copiedList.stream().flatMap(CopyOperationResult::getSlots).distinct().collect(Collectors.toUnmodifiableList());
-		final Map<DestinationEntrySlot, ByteBuffer> buffersBySlots = slots.stream().collect(Collectors.toUnmodifiableMap(slot -> slot, slot -> ByteBuffer.allocateDirect(4096)));
+	/**
+	 * Thread safe. Checks for a same destination slot are started in add order.
+	 */
+	public synchronized void add(final CopyOperationResult copied) {
+		if (wantToStop) {
+			return;
+		}
+		final List<ToCheck> toCheckList = copied.getResultCopies().entrySet().stream().map(entry -> {
+			return new ToCheck(copied.getSourceEntry(), entry.getKey(), entry.getValue());
+		}).collect(Collectors.toUnmodifiableList());
+		if (toCheckList.isEmpty()) {
+			return;
+		}
+		log.debug("Prepare to compute integrity checks for {}", toCheckList);
+
+		/**
+		 * All the checks for this source must be known before the first ends (see refreshDisplay).
+		 * A source can be added more than once (copied again to an other slot): its checks are appended.
+		 */
+		toCheckListBySources.computeIfAbsent(copied.getSourceEntry(), s -> new SourceChecks()).add(toCheckList);
+
+		toCheckList.forEach(check -> {
+			checkQueueBySlots.computeIfAbsent(check.destinationSlot, slot -> {
+				if (parallelChecksByDestination == 0) {
+					return new SlotCheckQueue(slot.toString(), executor, 1, true, executor.getMaximumPoolSize());
+				}
+				return new SlotCheckQueue(slot.toString(), executor, parallelChecksByDestination, false, parallelChecksByDestination);
+			}).add(check.sourceEntry.getFile().length(), () -> {
+				if (wantToStop == false) {
+					check.process();
+				}
+			});
+		});
+	}
 
-		toCheckBySlots = slots.stream().collect(Collectors.toUnmodifiableMap(slot -> {
-			return slot;
-		}, slot -> {
-			return copiedList.stream().map(copyOperationResult -> {
-				final Path pathForSlot = copyOperationResult.getResultCopies().get(slot);
-				return new ToCheck(copyOperationResult.getSourceEntry(), slot, pathForSlot, buffersBySlots.get(slot));
-			}).collect(Collectors.toUnmodifiableList());
-		}));
+	/**
+	 * All the checks of a source, with a count of the not yet done checks.
+	 */
+	private static class SourceChecks {
+		private final List<ToCheck> checks;
+		private int notChecked;
 
-		final AtomicLong counter = new AtomicLong();
-		final int size = Math.min(toCheckBySlots.size(), Runtime.getRuntime().availableProcessors());
-		executor = new ThreadPoolExecutor(size, size, 1l, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), r -> {
-			final Thread t = new Thread(r);
-			t.setDaemon(true);
-			t.setName("Check operation #" + counter.getAndIncrement());
-			return t;
-		});
+		private SourceChecks() {
+			checks = new ArrayList<>(1);
+		}
 
-		toCheckListBySources = toCheckBySlots.entrySet().stream().flatMap(entry -> {
-			return entry.getValue().stream();
-		}).map(toCheck -> toCheck.sourceEntry).distinct().collect(Collectors.toUnmodifiableMap(sourceEntry -> {
-			return sourceEntry;
-		}, sourceEntry -> {
-			return toCheckBySlots.entrySet().stream().flatMap(entry -> {
-				return entry.getValue().stream();
-			}).filter(toCheck -> {
-				return toCheck.sourceEntry.equals(sourceEntry);
-			}).collect(Collectors.toUnmodifiableList());
-		}));
+		private synchronized void add(final List<ToCheck> toCheckList) {
+			checks.addAll(toCheckList);
+			notChecked += toCheckList.size();
+		}
 
-		toCheckBySlots.keySet().forEach(slot -> {
-			log.debug("Prepare to compute integrity checks for {}", () -> toCheckBySlots.get(slot));
-		});
+		/**
+		 * @return empty if some checks are not done
+		 */
+		private synchronized Optional<IntegrityAllState> onCheckDone() {
+			notChecked--;
+			if (notChecked > 0) {
+				return Optional.empty();
+			}
+			final var allValid = checks.stream().allMatch(toCheck -> toCheck.state == IntegrityState.VALID);
+			final var allInvalid = checks.stream().allMatch(toCheck -> toCheck.state == IntegrityState.INVALID);
+			return Optional.of(IntegrityAllState.get(allValid, allInvalid));
+		}
 	}
 
 	private class ToCheck {
 		private final FileEntry sourceEntry;
 		private final Path copied;
-		private final ByteBuffer buffer;
 		private final DestinationEntrySlot destinationSlot;
-		private String digest;
+		private Map<String, String> digests;
 		private volatile IntegrityState state;
 
-		private ToCheck(final FileEntry sourceEntry, final DestinationEntrySlot destinationSlot, final Path copied, final ByteBuffer buffer) {
+		private ToCheck(final FileEntry sourceEntry, final DestinationEntrySlot destinationSlot, final Path copied) {
 			this.sourceEntry = Objects.requireNonNull(sourceEntry, "\"sourceEntry\" can't to be null");
 			this.destinationSlot = Objects.requireNonNull(destinationSlot, "\"destinationSlot\" can't to be null");
 			this.copied = Objects.requireNonNull(copied, "\"copied\" can't to be null");
-			this.buffer = Objects.requireNonNull(buffer, "\"buffer\" can't to be null");
 			state = IntegrityState.NOT_CHECKED;
 		}
 
 		private void readFile() throws IOException {
-			final List<MessageDigest> digests = Arrays.stream(MainClass.DIGEST_NAMES).map(digestName -> {
-				try {
-					return MessageDigest.getInstance(digestName);
-				} catch (final NoSuchAlgorithmException e) {
-					throw new RuntimeException("Can't init " + digestName + " Digest", e);
+			final var chunkDigests = new AtomicReference<Map<String, List<String>>>(Map.of());
+			digests = computeDigests(copied, chunkDigests::set);
+			if (wantToStop == false) {
+				destinationSlot.addComputedDigestToListFile(copied.toFile(), digests);
+				sourceEntry.setCopyDigests(copied.toFile(), digests);
+				if (chunkDigests.get().isEmpty() == false) {
+					destinationSlot.addComputedChunkDigestsToListFile(copied.toFile(), chunkDigests.get(), SHA256TreeDigest.getChunkSize());
 				}
-			}).collect(Collectors.toUnmodifiableList());
+			}
+		}
 
-			buffer.clear();
-			try (final FileChannel channel = FileChannel.open(copied, OPEN_OPTIONS_READ_ONLY)) {
-				while (channel.read(buffer) > 0) {
-					if (wantToStop) {
-						break;
-					}
-					digests.forEach(md -> {
-						buffer.flip();
-						md.update(buffer);
+		/**
+		 * The source digests are usually computed during the copy. They can be missing with CopyMode.TRANSFER: read the source here.
+		 */
+		private Map<String, String> getSourceDigests() throws IOException {
+			synchronized (sourceEntry) {
+				if (sourceEntry.getDigests().isEmpty()) {
+					log.info("Compute source digests for {}", sourceEntry.getFile());
+					final var sourceDigests = computeDigests(sourceEntry.getFile().toPath(), chunkDigests -> {
 					});
-					buffer.clear();
+					if (wantToStop == false) {
+						sourceEntry.setDigests(sourceDigests);
+					}
 				}
+				return sourceEntry.getDigests();
 			}
+		}
 
-			final var digestByAlgorithm = digests.stream().collect(Collectors.toUnmodifiableMap(md -> {
-				return md.getAlgorithm();
-			}, md -> {
-				return CopyOperation.byteToString(md.digest());
-			}));
-
-			digest = digestByAlgorithm.get(MainClass.DIGEST_NAMES[0]);
-			destinationSlot.addComputedDigestToListFile(copied.toFile(), digestByAlgorithm);
+		private Map<String, String> getDigests() {
+			return digests;
 		}
 
-		private String getDigest() {
-			return digest;
+		private void process() {
+			try {
+				log.info("Start to check integrity for {}", copied);
+				readFile();
+
+				if (wantToStop) {
+					return;
+				}
+
+				final Map<String, String> copiedDigests = getDigests();
+				final Map<String, String> sourceDigests = getSourceDigests();
+
+				if (wantToStop) {
+					return;
+				}
+
+				/**
+				 * All algorithms must match
+				 */
+				if (copiedDigests.equals(sourceDigests) == false) {
+					state = IntegrityState.INVALID;
+					log.error("Failed copy integrity between \"{}\" ({}) and \"{}\" ({})", sourceEntry.getFile(), sourceDigests, copied, copiedDigests);
+				} else {
+					state = IntegrityState.VALID;
+				}
+			} catch (final IOException | RuntimeException e) {
+				/**
+				 * An unreadable copy (or source) is not a valid copy.
+				 */
+				state = IntegrityState.INVALID;
+				log.error("Can't check integrity for " + copied, e);
+			} finally {
+				/**
+				 * A stopped check stays NOT_CHECKED, and must not be displayed as a failed check.
+				 */
+				if (wantToStop == false) {
+					refreshDisplay(sourceEntry);
+				}
+			}
 		}
 
 		@Override
@@ -165,71 +297,124 @@ public class IntegrityCheckEngine implements CanBeStopped {
 	}
 
 	/**
-	 * Async
+	 * Read chunk size by store, computed one time for each store: the "integrity.buffer.chunksize" value, 4 times bigger on network stores (less round trips),
+	 * aligned on the store block size. Little files will use little buffers (see CopyBufferRing).
 	 */
-	public CompletableFuture<?> start(final Executor waitForEndExecutor) {
-		final var cfList = toCheckBySlots.keySet().stream().map(slot -> {
-			return CompletableFuture.supplyAsync(() -> {
-				toCheckBySlots.get(slot).stream().filter(cL -> wantToStop == false).forEach(check -> {
-					try {
-						log.info("Start to check integrity for {}", check.copied);
-						check.readFile();
-
-						if (wantToStop) {
-							return;
-						}
-
-						final String copiedDigest = check.getDigest();
-						final String sourceDigest = check.sourceEntry.getDigest();
-
-						if (copiedDigest.equalsIgnoreCase(sourceDigest) == false) {
-							check.state = IntegrityState.INVALID;
-							log.error("Failed copy integrity between \"{}\" ({}) and \"{}\" ({})", check.sourceEntry.getFile(), sourceDigest, check.copied, copiedDigest);
-						} else {
-							check.state = IntegrityState.VALID;
-						}
-					} catch (final IOException e) {
-						throw new RuntimeException("Can't read " + check.copied, e);
-					}
+	private int getChunkSize(final FileStore fileStore) {
+		return chunkSizeByStore.computeIfAbsent(fileStore, store -> {
+			final long blockSize = getBlockSize(store);
+			long chunkSize = defaultChunkSize;
+			if (NETWORK_FILESTORE_TYPES.contains(store.type().toLowerCase())) {
+				chunkSize = chunkSize * 4;
+			}
+			chunkSize = Math.max(blockSize, (chunkSize + blockSize - 1) / blockSize * blockSize);
+			chunkSize = Math.min(chunkSize, Integer.MAX_VALUE / blockSize * blockSize);
+			log.debug("Use {} bytes read chunks for integrity checks on {} ({})", chunkSize, store, store.type());
+			return (int) chunkSize;
+		});
+	}
 
-					refreshDisplay(check.sourceEntry);
-				});
+	private static long getBlockSize(final FileStore fileStore) {
+		try {
+			return Math.max(1, fileStore.getBlockSize());
+		} catch (final IOException | UnsupportedOperationException e) {
+			return 4096;
+		}
+	}
 
-				return slot;
-			}, executor);
-		}).collect(Collectors.toUnmodifiableList());
+	/**
+	 * All the digests are computed in parallel, on the same read buffers.
+	 * @param onChunkDigests only for tree digests (see SHA256TreeDigest)
+	 */
+	private Map<String, String> computeDigests(final Path file, final Consumer<Map<String, List<String>>> onChunkDigests) throws IOException {
+		final FileStore fileStore = Files.getFileStore(file);
+		final int chunkSize = getChunkSize(fileStore);
+		final int bufferDepth = (int) Math.max(2, Math.min(bufferBudgetBytes / chunkSize, Integer.MAX_VALUE));
+
+		FileChannel directChannel = null;
+		int alignment = 1;
+		if (readMode == IntegrityReadMode.DIRECT) {
+			if (directReadRefusedStores.contains(fileStore) == false) {
+				try {
+					/**
+					 * Direct reads needs buffers address and read sizes aligned on the block size.
+					 */
+					alignment = (int) Math.min(getBlockSize(fileStore), chunkSize);
+					directChannel = FileChannel.open(file, OPEN_OPTIONS_READ_DIRECT);
+				} catch (final IOException | UnsupportedOperationException e) {
+					log.warn("Can't open " + file + " with direct I/O, fall back to cached reads for " + fileStore, e);
+					directReadRefusedStores.add(fileStore);
+					alignment = 1;
+				}
+			}
+		}
+
+		try (final FileChannel channel = directChannel != null ? directChannel : FileChannel.open(file, OPEN_OPTIONS_READ_ONLY); final CopyBufferRing bufferRing = new CopyBufferRing(bufferDepth, chunkSize, channel.size(), alignment)) {
+			final DigestPipeline digestPipeline = new DigestPipeline(bufferRing.getDepth(), digestExecutor, () -> wantToStop);
+			try {
+				/**
+				 * Never read after the file end: with direct I/O, reads at a not aligned position are refused.
+				 */
+				final long size = channel.size();
+				ByteBuffer buffer = bufferRing.next();
+				while (channel.position() < size && channel.read(buffer) > 0) {
+					if (wantToStop) {
+						break;
+					}
+					buffer.flip();
+					bufferRing.releaseOn(digestPipeline.update(buffer));
+					buffer = bufferRing.next();
+				}
+				final Map<String, String> digests = digestPipeline.getDigests();
+				onChunkDigests.accept(digestPipeline.getChunkDigests());
+				return digests;
+			} finally {
+				digestPipeline.close();
+			}
+		} catch (InterruptedException | ExecutionException e) {
+			throw new RuntimeException("Can't compute digests for " + file, e);
+		}
+	}
+
+	/**
+	 * Async. Call it when all the copied files are added.
+	 * @return done when all the checks are done
+	 */
+	public CompletableFuture<?> start(final Executor waitForEndExecutor) {
+		final List<Map.Entry<DestinationEntrySlot, CompletableFuture<Void>>> cfList;
+		synchronized (this) {
+			cfList = checkQueueBySlots.entrySet().stream().map(entry -> {
+				return Map.entry(entry.getKey(), entry.getValue().close());
+			}).collect(Collectors.toUnmodifiableList());
+		}
 
 		currentTask = CompletableFuture.runAsync(() -> {
-			cfList.forEach(action -> {
+			cfList.forEach(entry -> {
 				if (wantToStop) {
 					return;
 				}
 				try {
-					final var slot = action.get();
-					log.debug("All integrity checks are done for {}", () -> toCheckBySlots.get(slot));
+					entry.getValue().get();
+					log.debug("All integrity checks are done for {}", entry.getKey());
 				} catch (InterruptedException | ExecutionException e) {
 					throw new RuntimeException("Can't wait all checks operations", e);
 				}
 			});
 			executor.shutdown();
+			digestExecutor.shutdown();
 		}, waitForEndExecutor);
 
 		return currentTask;
 	}
 
+	/**
+	 * Called after each check: only the last check of a source looks at all its checks.
+	 */
 	private void refreshDisplay(final FileEntry sourceEntry) {
-		final var toCheckList = toCheckListBySources.get(sourceEntry);
-		if (toCheckList.stream().anyMatch(toCheck -> {
-			return toCheck.state == IntegrityState.NOT_CHECKED;
-		})) {
-			return;
-		}
-
-		final var allValid = toCheckList.stream().allMatch(toCheck -> toCheck.state == IntegrityState.VALID);
-		final var allInvalid = toCheckList.stream().allMatch(toCheck -> toCheck.state == IntegrityState.INVALID);
-
-		Platform.runLater(() -> {
-			sourceEntry.setAllCopiesIntegrity(IntegrityAllState.get(allValid, allInvalid));
+		toCheckListBySources.get(sourceEntry).onCheckDone().ifPresent(integrityAllState -> {
+			Platform.runLater(() -> {
+				sourceEntry.setAllCopiesIntegrity(integrityAllState);
+			});
 		});
 	}
 
@@ -239,6 +424,7 @@ public class IntegrityCheckEngine implements CanBeStopped {
 
 		if (executor.getActiveCount() == 0) {
 			executor.shutdown();
+			digestExecutor.shutdown();
 			onDone.run();
 			return;
 		}
@@ -248,10 +434,12 @@ public class IntegrityCheckEngine implements CanBeStopped {
 			currentTask.completeExceptionally(new Exception("Manual stop operation"));
 		}
 
-		executor.getQueue().clear();
-
+		/**
+		 * Queued checks are not removed: they will see wantToStop and ends immediately.
+		 */
 		CompletableFuture.runAsync(onDone, executor).thenAcceptAsync(v -> {
 			executor.shutdown();
+			digestExecutor.shutdown();
 		});
 	}
 
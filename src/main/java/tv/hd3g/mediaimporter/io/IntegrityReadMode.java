@@ -0,0 +1,38 @@
+/*
+ * This file is part of mediaimporter.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * Copyright (C) hdsdi3g for hd3g.tv 2019
+ *
+*/
+package tv.hd3g.mediaimporter.io;
+
+public enum IntegrityReadMode {
+
+	/**
+	 * Read via the OS cache: just after a copy, the check can read the cache and not the destination media.
+	 */
+	CACHED,
+	/**
+	 * Bypass the OS cache (O_DIRECT) with aligned buffers: a real media check, without evict useful cache.
+	 * Fall back to CACHED if the filesystem refuses it.
+	 */
+	DIRECT;
+
+	/**
+	 * @return from "integrity.read.mode" property, CACHED by default
+	 */
+	public static IntegrityReadMode getFromConfig() {
+		return IntegrityReadMode.valueOf(System.getProperty("integrity.read.mode", CACHED.name()).trim().toUpperCase());
+	}
+
+}
@@ -0,0 +1,74 @@
+/*
+ * This file is part of mediaimporter.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * Copyright (C) hdsdi3g for hd3g.tv 2019
+ *
+*/
+package tv.hd3g.mediaimporter.io;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Release a mapped window now, instead of waiting the GC.
+ * Use sun.misc.Unsafe.invokeCleaner (JDK 9+), if not available, the mapping is only released by the GC.
+ * Never unmap a buffer still used by something: any access after this crash the JVM.
+ */
+final class MappedBufferUnmapper {
+	private static Logger log = LogManager.getLogger();
+
+	private static final Object unsafe;
+	private static final Method invokeCleaner;
+
+	static {
+		Object foundUnsafe = null;
+		Method foundInvokeCleaner = null;
+		try {
+			final Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+			final Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+			theUnsafe.setAccessible(true);
+			foundUnsafe = theUnsafe.get(null);
+			foundInvokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+		} catch (final ReflectiveOperationException | RuntimeException e) {
+			log.warn("Can't prepare mapped buffers unmapper, mapped windows will be released by the GC", e);
+			foundUnsafe = null;
+			foundInvokeCleaner = null;
+		}
+		unsafe = foundUnsafe;
+		invokeCleaner = foundInvokeCleaner;
+	}
+
+	private MappedBufferUnmapper() {
+	}
+
+	/**
+	 * @param window the buffer returned by FileChannel.map, not a slice or a duplicate.
+	 */
+	static void unmap(final MappedByteBuffer window) {
+		if (invokeCleaner == null) {
+			return;
+		}
+		try {
+			invokeCleaner.invoke(unsafe, window);
+		} catch (IllegalAccessException | InvocationTargetException | RuntimeException e) {
+			log.warn("Can't unmap window, it will be released by the GC", e);
+		}
+	}
+
+}
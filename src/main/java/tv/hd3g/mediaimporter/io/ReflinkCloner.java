@@ -0,0 +1,282 @@
+/*
+ * This file is part of mediaimporter.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * Copyright (C) hdsdi3g for hd3g.tv 2019
+ *
+*/
+package tv.hd3g.mediaimporter.io;
+
+import java.io.IOException;
+import java.nio.file.FileStore;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.BooleanSupplier;
+
+import org.apache.commons.lang3.SystemUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import com.sun.nio.file.ExtendedCopyOption;
+
+import tv.hd3g.mediaimporter.DestinationEntry;
+import tv.hd3g.mediaimporter.SourceEntry;
+import tv.hd3g.processlauncher.ProcesslauncherLifecycle;
+import tv.hd3g.processlauncher.cmdline.ExecutableFinder;
+import tv.hd3g.processlauncher.cmdline.Parameters;
+import tv.hd3g.processlauncher.tool.ExecutableTool;
+import tv.hd3g.processlauncher.tool.RunningTool;
+import tv.hd3g.processlauncher.tool.ToolRunner;
+
+/**
+ * Clone a source file to a destination on the same copy-on-write filesystem, without read or write its datas.
+ * On Windows, the sources and destinations on the same ReFS volume are block cloned by the system copy, only since Windows 11 24H2 and Server 2025
+ * (build 26100): before, the system copy is a full copy, so these destinations are copied like the others (with progress and source digest).
+ * The JDK has no other API for this: it uses "cp --reflink=always" on Linux (btrfs, XFS), "cp -c" on macOS (APFS). The app itself is not yet managed on these OS (see FileSanity and NavigateTo).
+ * A destination is no longer cloned after the first refused clone (filesystem without reflinks).
+ * Thread safe.
+ */
+class ReflinkCloner {
+	private static Logger log = LogManager.getLogger();
+
+	private static final String WINDOWS_CLONE_FILESYSTEM = "ReFS";
+	private static final long STOP_CHECK_INTERVAL_MSEC = 100;
+	private static final int WINDOWS_BLOCK_CLONE_MIN_BUILD = 26100;
+
+	private final Map<SourceEntry, FileStore> sourceDeviceBySource;
+	private final Map<DestinationEntry, FileStore> destinationDeviceByDestination;
+	private final Set<DestinationEntry> refusedDestinations;
+	private final ExecutorService windowsCloneExecutor;
+	private final ToolRunner toolRunner;
+	/**
+	 * Only for Windows, checked on the first clone try.
+	 */
+	private Boolean windowsBlockClone;
+
+	/**
+	 * @param enabled if false, canClone will always return false.
+	 */
+	ReflinkCloner(final Map<SourceEntry, FileStore> sourceDeviceBySource, final List<DestinationEntry> allDestinations, final boolean enabled) {
+		this.sourceDeviceBySource = Objects.requireNonNull(sourceDeviceBySource, "\"sourceDeviceBySource\" can't to be null");
+		refusedDestinations = ConcurrentHashMap.newKeySet();
+
+		final Map<DestinationEntry, FileStore> destinationDevices = new HashMap<>();
+		if (enabled) {
+			allDestinations.forEach(destination -> {
+				try {
+					final FileStore destinationDevice = Files.getFileStore(destination.getRootPath().toPath());
+					if (SystemUtils.IS_OS_WINDOWS && destinationDevice.type().equalsIgnoreCase(WINDOWS_CLONE_FILESYSTEM) == false) {
+						return;
+					}
+					if (sourceDeviceBySource.containsValue(destinationDevice)) {
+						log.info("Source and destination {} are on the same filesystem ({}), try to clone files instead of copy them", destination, destinationDevice);
+						destinationDevices.put(destination, destinationDevice);
+					}
+				} catch (final IOException e) {
+					log.debug("Can't get filesystem for " + destination, e);
+				}
+			});
+		}
+		destinationDeviceByDestination = Map.copyOf(destinationDevices);
+
+		if (destinationDeviceByDestination.isEmpty()) {
+			windowsCloneExecutor = null;
+			toolRunner = null;
+		} else if (SystemUtils.IS_OS_WINDOWS) {
+			windowsCloneExecutor = Executors.newCachedThreadPool(r -> {
+				final Thread t = new Thread(r);
+				t.setDaemon(true);
+				t.setName("Clone");
+				return t;
+			});
+			toolRunner = new ToolRunner(new ExecutableFinder(), 1);
+		} else {
+			windowsCloneExecutor = null;
+			toolRunner = new ToolRunner(new ExecutableFinder(), Runtime.getRuntime().availableProcessors());
+		}
+	}
+
+	boolean canClone(final SourceEntry source, final DestinationEntry destination) {
+		final FileStore destinationDevice = destinationDeviceByDestination.get(destination);
+		if (destinationDevice == null || refusedDestinations.contains(destination)) {
+			return false;
+		}
+		if (destinationDevice.equals(sourceDeviceBySource.get(source)) == false) {
+			return false;
+		}
+		return windowsCloneExecutor == null || isWindowsBlockClone();
+	}
+
+	/**
+	 * The system copy don't say if it has cloned or copied the file: only the Windows build can tell it.
+	 * @return false if the Windows build can't be get.
+	 */
+	private synchronized boolean isWindowsBlockClone() {
+		if (windowsBlockClone == null) {
+			int build = 0;
+			try {
+				build = toolRunner.execute(new WindowsBuildQuery()).get().checkExecutionGetText().getStdoutLines(false).map(String::trim).filter(line -> line.startsWith("CurrentBuildNumber")).map(line -> line.substring(line.lastIndexOf(' ') + 1)).mapToInt(Integer::parseInt).findFirst().orElse(0);
+			} catch (final InterruptedException e) {
+				Thread.currentThread().interrupt();
+				log.warn("Interrupted during the Windows build query", e);
+				return false;
+			} catch (final ExecutionException | RuntimeException e) {
+				log.warn("Can't get the Windows build", e);
+			}
+			windowsBlockClone = build >= WINDOWS_BLOCK_CLONE_MIN_BUILD;
+			if (windowsBlockClone) {
+				log.info("Windows build {}, the system copy will block clone the files on ReFS", build);
+			} else {
+				log.info("Windows build {} (before {}), the system copy can't block clone the files on ReFS: they will be copied", build, WINDOWS_BLOCK_CLONE_MIN_BUILD);
+			}
+		}
+		return windowsBlockClone;
+	}
+
+	/**
+	 * @param destinationFile will be created, with the source dates
+	 * @param wantToStop checked during the clone: a stopped clone is removed.
+	 * @return false if the clone is refused or stopped: the destination must be copied.
+	 */
+	boolean clone(final Path sourceFile, final Path destinationFile, final DestinationEntry destination, final BooleanSupplier wantToStop) {
+		try {
+			final boolean done;
+			if (windowsCloneExecutor != null) {
+				done = windowsClone(sourceFile, destinationFile, wantToStop);
+			} else {
+				done = toolClone(sourceFile, destinationFile, wantToStop);
+			}
+			if (done == false) {
+				log.info("Stop clone from {} to {}", sourceFile, destinationFile);
+				removeFailedClone(destinationFile);
+				return false;
+			}
+			return true;
+		} catch (final IOException | ExecutionException | RuntimeException e) {
+			log.warn("Can't clone " + sourceFile + " to " + destinationFile + ", fall back to copy for all next files on " + destination, e);
+		} catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+			log.warn("Interrupted clone from " + sourceFile + " to " + destinationFile, e);
+			removeFailedClone(destinationFile);
+			return false;
+		}
+
+		refusedDestinations.add(destination);
+		removeFailedClone(destinationFile);
+		return false;
+	}
+
+	/**
+	 * The system copy (CopyFileEx) block clones on ReFS. It's interruptible, in its own thread.
+	 * @return false if stopped
+	 */
+	private boolean windowsClone(final Path sourceFile, final Path destinationFile, final BooleanSupplier wantToStop) throws IOException, InterruptedException, ExecutionException {
+		final Future<Path> clone = windowsCloneExecutor.submit(() -> Files.copy(sourceFile, destinationFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.COPY_ATTRIBUTES, ExtendedCopyOption.INTERRUPTIBLE));
+		while (true) {
+			try {
+				clone.get(STOP_CHECK_INTERVAL_MSEC, TimeUnit.MILLISECONDS);
+				return true;
+			} catch (final TimeoutException e) {
+				if (wantToStop.getAsBoolean()) {
+					clone.cancel(true);
+					return false;
+				}
+			} catch (final ExecutionException e) {
+				if (e.getCause() instanceof IOException) {
+					throw (IOException) e.getCause();
+				}
+				throw e;
+			}
+		}
+	}
+
+	/**
+	 * @return false if stopped
+	 */
+	private boolean toolClone(final Path sourceFile, final Path destinationFile, final BooleanSupplier wantToStop) throws InterruptedException, ExecutionException {
+		final RunningTool<CopyClone> runningTool = toolRunner.execute(new CopyClone(sourceFile, destinationFile)).get();
+		final ProcesslauncherLifecycle lifecycle = runningTool.getLifecyle();
+		while (lifecycle.isRunning()) {
+			if (wantToStop.getAsBoolean()) {
+				lifecycle.kill();
+				return false;
+			}
+			lifecycle.waitForEnd(STOP_CHECK_INTERVAL_MSEC, TimeUnit.MILLISECONDS);
+		}
+		runningTool.checkExecutionGetText();
+		return true;
+	}
+
+	class CopyClone implements ExecutableTool {
+
+		final Path sourceFile;
+		final Path destinationFile;
+
+		CopyClone(final Path sourceFile, final Path destinationFile) {
+			this.sourceFile = sourceFile;
+			this.destinationFile = destinationFile;
+		}
+
+		@Override
+		public Parameters getReadyToRunParameters() {
+			final Parameters parameters = new Parameters();
+			if (SystemUtils.IS_OS_MAC_OSX) {
+				parameters.addParameters("-c", "-p", sourceFile.toString(), destinationFile.toString());
+			} else {
+				parameters.addParameters("--reflink=always", "--preserve=timestamps", sourceFile.toString(), destinationFile.toString());
+			}
+			return parameters;
+		}
+
+		@Override
+		public String getExecutableName() {
+			return "cp";
+		}
+	}
+
+	class WindowsBuildQuery implements ExecutableTool {
+
+		@Override
+		public Parameters getReadyToRunParameters() {
+			final Parameters parameters = new Parameters();
+			parameters.addParameters("query", "HKLM\\SOFTWARE\\Microsoft\\Windows NT\\CurrentVersion", "/v", "CurrentBuildNumber");
+			return parameters;
+		}
+
+		@Override
+		public String getExecutableName() {
+			return "reg";
+		}
+	}
+
+	private static void removeFailedClone(final Path destinationFile) {
+		try {
+			Files.deleteIfExists(destinationFile);
+		} catch (final IOException e) {
+			log.warn("Can't remove the failed clone " + destinationFile, e);
+		}
+	}
+
+}
@@ -0,0 +1,196 @@
+/*
+ * This file is part of mediaimporter.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * Copyright (C) hdsdi3g for hd3g.tv 2019
+ *
+*/
+package tv.hd3g.mediaimporter.io;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.stream.Collectors;
+
+/**
+ * Merkle tree of SHA-256 over fixed-size chunks (like RFC 6962: leaf = SHA-256(0x00 + chunk), node = SHA-256(0x01 + left + right), an odd node is promoted as is).
+ * Chunks of a same file are hashed in parallel on the common ForkJoinPool: the file hash is not limited to one core.
+ * Chunk size is set by the "integrity.tree.chunksize" property, 1 MB by default, and must be the same between two compared digests.
+ * After digest(), the chunk digests are available for partial checks.
+ */
+public class SHA256TreeDigest extends MessageDigest {
+
+	public static final String ALGORITHM = "SHA256TREE";
+	private static final int CHUNK_SIZE = Math.max(1024, Integer.getInteger("integrity.tree.chunksize", 1024 * 1024));
+	private static final byte LEAF_PREFIX = 0;
+	private static final byte NODE_PREFIX = 1;
+
+	private final ForkJoinPool pool;
+	private final int maxPendingChunks;
+	private final List<ForkJoinTask<byte[]>> chunkTasks;
+	private final List<byte[]> chunkTaskBuffers;
+	private final ArrayDeque<byte[]> freeChunkBuffers;
+	private byte[] currentChunk;
+	private int currentChunkPosition;
+	private int firstPendingTask;
+	private List<String> lastChunkDigests;
+
+	public SHA256TreeDigest() {
+		super(ALGORITHM);
+		pool = ForkJoinPool.commonPool();
+		maxPendingChunks = pool.getParallelism() + 1;
+		chunkTasks = new ArrayList<>();
+		chunkTaskBuffers = new ArrayList<>();
+		freeChunkBuffers = new ArrayDeque<>();
+		lastChunkDigests = List.of();
+		engineReset();
+	}
+
+	public static int getChunkSize() {
+		return CHUNK_SIZE;
+	}
+
+	/**
+	 * @return hex chunk digests (leaves) from the last digest() call, in file order.
+	 */
+	public List<String> getLastChunkDigests() {
+		return lastChunkDigests;
+	}
+
+	@Override
+	protected int engineGetDigestLength() {
+		return 32;
+	}
+
+	@Override
+	protected void engineReset() {
+		chunkTasks.forEach(task -> task.cancel(false));
+		chunkTasks.clear();
+		chunkTaskBuffers.clear();
+		firstPendingTask = 0;
+		currentChunk = null;
+		currentChunkPosition = 0;
+	}
+
+	@Override
+	protected void engineUpdate(final byte input) {
+		engineUpdate(new byte[] { input }, 0, 1);
+	}
+
+	@Override
+	protected void engineUpdate(final byte[] input, final int offset, final int len) {
+		engineUpdate(ByteBuffer.wrap(input, offset, len));
+	}
+
+	/**
+	 * Datas are copied in a chunk buffer: the input can be reused after the call.
+	 */
+	@Override
+	protected void engineUpdate(final ByteBuffer input) {
+		while (input.hasRemaining()) {
+			if (currentChunk == null) {
+				currentChunk = takeChunkBuffer();
+			}
+			final int size = Math.min(input.remaining(), CHUNK_SIZE - currentChunkPosition);
+			input.get(currentChunk, currentChunkPosition, size);
+			currentChunkPosition += size;
+			if (currentChunkPosition == CHUNK_SIZE) {
+				submitCurrentChunk();
+			}
+		}
+	}
+
+	private byte[] takeChunkBuffer() {
+		final byte[] buffer = freeChunkBuffers.poll();
+		if (buffer != null) {
+			return buffer;
+		}
+		return new byte[CHUNK_SIZE];
+	}
+
+	private void submitCurrentChunk() {
+		final byte[] chunk = currentChunk;
+		final int size = currentChunkPosition;
+		currentChunk = null;
+		currentChunkPosition = 0;
+
+		chunkTasks.add(pool.submit(() -> {
+			final MessageDigest sha256 = newSHA256();
+			sha256.update(LEAF_PREFIX);
+			sha256.update(chunk, 0, size);
+			return sha256.digest();
+		}));
+		chunkTaskBuffers.add(chunk);
+
+		/**
+		 * Limit the memory used by the pending chunks: wait the oldest, and reuse its buffer.
+		 */
+		if (chunkTasks.size() - firstPendingTask >= maxPendingChunks) {
+			chunkTasks.get(firstPendingTask).join();
+			freeChunkBuffers.add(chunkTaskBuffers.set(firstPendingTask, null));
+			firstPendingTask++;
+		}
+	}
+
+	private static MessageDigest newSHA256() {
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		} catch (final NoSuchAlgorithmException e) {
+			throw new RuntimeException("Can't init SHA-256 Digest", e);
+		}
+	}
+
+	@Override
+	protected byte[] engineDigest() {
+		/**
+		 * An empty file has a single empty chunk
+		 */
+		if (currentChunkPosition > 0 || chunkTasks.isEmpty()) {
+			if (currentChunk == null) {
+				currentChunk = takeChunkBuffer();
+			}
+			submitCurrentChunk();
+		}
+
+		List<byte[]> level = chunkTasks.stream().map(ForkJoinTask::join).collect(Collectors.toUnmodifiableList());
+		lastChunkDigests = level.stream().map(CopyOperation::byteToString).collect(Collectors.toUnmodifiableList());
+
+		while (level.size() > 1) {
+			final List<byte[]> nextLevel = new ArrayList<>((level.size() + 1) / 2);
+			for (int pos = 0; pos < level.size(); pos += 2) {
+				if (pos + 1 == level.size()) {
+					nextLevel.add(level.get(pos));
+				} else {
+					final MessageDigest sha256 = newSHA256();
+					sha256.update(NODE_PREFIX);
+					sha256.update(level.get(pos));
+					sha256.update(level.get(pos + 1));
+					nextLevel.add(sha256.digest());
+				}
+			}
+			level = nextLevel;
+		}
+
+		chunkTaskBuffers.stream().filter(Objects::nonNull).forEach(freeChunkBuffers::add);
+		chunkTasks.clear();
+		chunkTaskBuffers.clear();
+		firstPendingTask = 0;
+		return level.get(0);
+	}
+
+}
@@ -0,0 +1,186 @@
+/*
+ * This file is part of mediaimporter.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * Copyright (C) hdsdi3g for hd3g.tv 2019
+ *
+*/
+package tv.hd3g.mediaimporter.io;
+
+import java.util.LinkedList;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Run the checks for one destination, in add order, with a limited concurrency.
+ * With auto-tune, the concurrency starts at 1, and goes up (or down) while the measured throughput increases (or decreases).
+ */
+class SlotCheckQueue {
+	private static Logger log = LogManager.getLogger();
+
+	/**
+	 * Less than 10% of throughput change is just noise.
+	 */
+	private static final double TUNE_THRESHOLD = 0.1d;
+
+	private final String name;
+	private final Executor executor;
+	private final boolean autoTune;
+	private final int maxConcurrency;
+	private final LinkedList<PendingCheck> pending;
+	private final CompletableFuture<Void> end;
+
+	private int concurrency;
+	private int running;
+	private boolean closed;
+	private RuntimeException firstError;
+
+	private long busySinceNanos;
+	private long windowBusyNanos;
+	private long windowBytes;
+	private int windowChecks;
+	private double lastThroughput;
+
+	/**
+	 * @param concurrency start value if autoTune, else the fixed concurrency.
+	 * @param maxConcurrency only for autoTune
+	 */
+	SlotCheckQueue(final String name, final Executor executor, final int concurrency, final boolean autoTune, final int maxConcurrency) {
+		this.name = name;
+		this.executor = executor;
+		this.concurrency = Math.max(1, concurrency);
+		this.autoTune = autoTune;
+		this.maxConcurrency = Math.max(this.concurrency, maxConcurrency);
+		pending = new LinkedList<>();
+		end = new CompletableFuture<>();
+	}
+
+	private static class PendingCheck {
+		private final long sizeBytes;
+		private final Runnable check;
+
+		private PendingCheck(final long sizeBytes, final Runnable check) {
+			this.sizeBytes = sizeBytes;
+			this.check = check;
+		}
+	}
+
+	/**
+	 * @param sizeBytes to check, for the throughput measure
+	 */
+	synchronized void add(final long sizeBytes, final Runnable check) {
+		if (closed) {
+			throw new IllegalStateException("Closed check queue for " + name);
+		}
+		pending.add(new PendingCheck(sizeBytes, check));
+		dispatch();
+	}
+
+	private synchronized void dispatch() {
+		while (running < concurrency && pending.isEmpty() == false) {
+			final PendingCheck next = pending.poll();
+			if (running == 0) {
+				busySinceNanos = System.nanoTime();
+			}
+			running++;
+			try {
+				CompletableFuture.runAsync(next.check, executor).whenComplete((v, e) -> {
+					onCheckDone(next.sizeBytes, e);
+				});
+			} catch (final RejectedExecutionException e) {
+				/**
+				 * Stopped engine
+				 */
+				log.debug("Skip check on {}", name);
+				running--;
+			}
+		}
+		if (closed && running == 0 && pending.isEmpty()) {
+			if (firstError != null) {
+				end.completeExceptionally(firstError);
+			} else {
+				end.complete(null);
+			}
+		}
+	}
+
+	private synchronized void onCheckDone(final long sizeBytes, final Throwable error) {
+		running--;
+		if (error != null && firstError == null) {
+			firstError = new RuntimeException("Check error on " + name, error);
+		}
+
+		final long now = System.nanoTime();
+		windowBytes += sizeBytes;
+		windowChecks++;
+		if (running == 0) {
+			windowBusyNanos += now - busySinceNanos;
+			busySinceNanos = now;
+		}
+		if (autoTune) {
+			tune(now);
+		}
+		dispatch();
+	}
+
+	/**
+	 * Evaluate the throughput on a window of some checks, only when the destination is busy.
+	 */
+	private void tune(final long now) {
+		if (windowChecks < concurrency * 2) {
+			return;
+		}
+		long busyNanos = windowBusyNanos;
+		if (running > 0) {
+			busyNanos += now - busySinceNanos;
+			busySinceNanos = now;
+		}
+		if (busyNanos < 1) {
+			return;
+		}
+		final double throughput = windowBytes * 1_000_000_000d / busyNanos;
+
+		final int previousConcurrency = concurrency;
+		if (throughput > lastThroughput * (1d + TUNE_THRESHOLD) && concurrency < maxConcurrency) {
+			concurrency++;
+		} else if (throughput < lastThroughput * (1d - TUNE_THRESHOLD) && concurrency > 1) {
+			concurrency--;
+		}
+		if (previousConcurrency != concurrency) {
+			log.debug("Change check concurrency for {}: {} -> {} ({} bytes/sec)", name, previousConcurrency, concurrency, Math.round(throughput));
+		}
+
+		lastThroughput = throughput;
+		windowBusyNanos = 0;
+		windowBytes = 0;
+		windowChecks = 0;
+	}
+
+	/**
+	 * No more add(). Can be called more than once.
+	 * @return done when all the added checks are done
+	 */
+	synchronized CompletableFuture<Void> close() {
+		closed = true;
+		dispatch();
+		return end;
+	}
+
+	synchronized int getConcurrency() {
+		return concurrency;
+	}
+
+}
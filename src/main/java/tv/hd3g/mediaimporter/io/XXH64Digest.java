@@ -0,0 +1,154 @@
+/*
+ * This file is part of mediaimporter.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * Copyright (C) hdsdi3g for hd3g.tv 2019
+ *
+*/
+package tv.hd3g.mediaimporter.io;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.security.MessageDigestSpi;
+
+/**
+ * Pure Java xxHash64 (seed 0), a fast non-cryptographic hash: only for integrity checks.
+ * Digest bytes are big-endian, like the xxh64sum tool output.
+ * See https://github.com/Cyan4973/xxHash/blob/dev/doc/xxhash_spec.md
+ */
+public class XXH64Digest extends MessageDigestSpi {
+
+	private static final long PRIME1 = 0x9E3779B185EBCA87L;
+	private static final long PRIME2 = 0xC2B2AE3D27D4EB4FL;
+	private static final long PRIME3 = 0x165667B19E3779F9L;
+	private static final long PRIME4 = 0x85EBCA77C2B2AE63L;
+	private static final long PRIME5 = 0x27D4EB2F165667C5L;
+	private static final int STRIPE_SIZE = 32;
+
+	private final ByteBuffer pending;
+	private long v1;
+	private long v2;
+	private long v3;
+	private long v4;
+	private long totalLength;
+
+	public XXH64Digest() {
+		pending = ByteBuffer.allocate(STRIPE_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+		engineReset();
+	}
+
+	@Override
+	protected int engineGetDigestLength() {
+		return 8;
+	}
+
+	@Override
+	protected void engineReset() {
+		v1 = PRIME1 + PRIME2;
+		v2 = PRIME2;
+		v3 = 0;
+		v4 = -PRIME1;
+		totalLength = 0;
+		pending.clear();
+	}
+
+	@Override
+	protected void engineUpdate(final byte input) {
+		engineUpdate(new byte[] { input }, 0, 1);
+	}
+
+	@Override
+	protected void engineUpdate(final byte[] input, final int offset, final int len) {
+		engineUpdate(ByteBuffer.wrap(input, offset, len));
+	}
+
+	@Override
+	protected void engineUpdate(final ByteBuffer input) {
+		final ByteBuffer source = input.slice().order(ByteOrder.LITTLE_ENDIAN);
+		totalLength += source.remaining();
+		input.position(input.limit());
+
+		/**
+		 * Complete the stripe started by the previous update
+		 */
+		if (pending.position() > 0) {
+			while (pending.hasRemaining() && source.hasRemaining()) {
+				pending.put(source.get());
+			}
+			if (pending.hasRemaining()) {
+				return;
+			}
+			pending.flip();
+			processStripe(pending);
+			pending.clear();
+		}
+
+		while (source.remaining() >= STRIPE_SIZE) {
+			processStripe(source);
+		}
+		pending.put(source);
+	}
+
+	private void processStripe(final ByteBuffer stripe) {
+		v1 = round(v1, stripe.getLong());
+		v2 = round(v2, stripe.getLong());
+		v3 = round(v3, stripe.getLong());
+		v4 = round(v4, stripe.getLong());
+	}
+
+	private static long round(final long acc, final long input) {
+		return Long.rotateLeft(acc + input * PRIME2, 31) * PRIME1;
+	}
+
+	private static long mergeRound(final long acc, final long value) {
+		return (acc ^ round(0, value)) * PRIME1 + PRIME4;
+	}
+
+	@Override
+	protected byte[] engineDigest() {
+		long hash;
+		if (totalLength >= STRIPE_SIZE) {
+			hash = Long.rotateLeft(v1, 1) + Long.rotateLeft(v2, 7) + Long.rotateLeft(v3, 12) + Long.rotateLeft(v4, 18);
+			hash = mergeRound(hash, v1);
+			hash = mergeRound(hash, v2);
+			hash = mergeRound(hash, v3);
+			hash = mergeRound(hash, v4);
+		} else {
+			hash = PRIME5;
+		}
+		hash += totalLength;
+
+		pending.flip();
+		while (pending.remaining() >= 8) {
+			hash ^= round(0, pending.getLong());
+			hash = Long.rotateLeft(hash, 27) * PRIME1 + PRIME4;
+		}
+		if (pending.remaining() >= 4) {
+			hash ^= (pending.getInt() & 0xFFFFFFFFL) * PRIME1;
+			hash = Long.rotateLeft(hash, 23) * PRIME2 + PRIME3;
+		}
+		while (pending.hasRemaining()) {
+			hash ^= (pending.get() & 0xFF) * PRIME5;
+			hash = Long.rotateLeft(hash, 11) * PRIME1;
+		}
+
+		hash ^= hash >>> 33;
+		hash *= PRIME2;
+		hash ^= hash >>> 29;
+		hash *= PRIME3;
+		hash ^= hash >>> 32;
+
+		engineReset();
+		return ByteBuffer.allocate(8).putLong(hash).array();
+	}
+
+}
@@ -22,12 +22,10 @@ import java.nio.charset.Charset;
 import java.nio.file.Path;
 import java.sql.Connection;
 import java.sql.DatabaseMetaData;
-import java.sql.DriverManager;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
-import java.util.Map;
 import java.util.Objects;
 import java.util.Optional;
 import java.util.Properties;
@@ -52,10 +50,12 @@ import tv.hd3g.mediaimporter.SourceEntry;
 public class ConfigurationStore {
 	private static Logger log = LogManager.getLogger();
 
-	private final String url;
+	private final SQLiteConnection sqlite;
 	private final Properties config;
+	private final DigestIndex digestIndex;
+	private final SourceSnapshotStore sourceSnapshotStore;
 
-	public ConfigurationStore(final String name, final ObservableList<SourceEntry> sourcesList, final ObservableList<DestinationEntry> destsList, final TextField _inputPrefixDirName, final FileSanity fileSanity, final Map<File, Long> digestByFileCache) {
+	public ConfigurationStore(final String name, final ObservableList<SourceEntry> sourcesList, final ObservableList<DestinationEntry> destsList, final TextField _inputPrefixDirName, final FileSanity fileSanity) {
 		Objects.requireNonNull(sourcesList, "\"sourcesList\" can't to be null");
 		Objects.requireNonNull(destsList, "\"destsList\" can't to be null");
 
@@ -68,22 +68,35 @@ public class ConfigurationStore {
 
 		// sqliteFile.delete();
 
-		url = "jdbc:sqlite:" + sqliteFile.getPath().replaceAll("\\\\", "/");
-		if (sqliteFile.exists() == false) {
-			try (Connection conn = DriverManager.getConnection(url)) {
-				if (conn != null) {
+		/**
+		 * A single connection for all the stores: concurrent writes on the same SQLite file can't be done by separate connections.
+		 */
+		final boolean newDatabase = sqliteFile.exists() == false;
+		sqlite = new SQLiteConnection("jdbc:sqlite:" + sqliteFile.getPath().replaceAll("\\\\", "/"));
+		digestIndex = new DigestIndex(sqlite);
+		sourceSnapshotStore = new SourceSnapshotStore(sqlite);
+		if (newDatabase) {
+			try {
+				sqlite.accept(conn -> {
 					final DatabaseMetaData meta = conn.getMetaData();
 					log.info("Create new " + meta.getDriverName() + " on " + sqliteFile);
-				}
+				});
 			} catch (final SQLException e) {
 				throw new RuntimeException("Can't init database", e);
 			}
 
-			try (Connection conn = DriverManager.getConnection(url); Statement stmt = conn.createStatement()) {
-				log.debug("Init SQLite tables");
-				stmt.execute(IOUtils.toString(getClass().getResource("createdb-sources.sql").openStream(), Charset.defaultCharset()));
-				stmt.execute(IOUtils.toString(getClass().getResource("createdb-destinations.sql").openStream(), Charset.defaultCharset()));
-				stmt.execute(IOUtils.toString(getClass().getResource("createdb-config.sql").openStream(), Charset.defaultCharset()));
+			try {
+				final String createSources = IOUtils.toString(getClass().getResource("createdb-sources.sql").openStream(), Charset.defaultCharset());
+				final String createDestinations = IOUtils.toString(getClass().getResource("createdb-destinations.sql").openStream(), Charset.defaultCharset());
+				final String createConfig = IOUtils.toString(getClass().getResource("createdb-config.sql").openStream(), Charset.defaultCharset());
+				sqlite.accept(conn -> {
+					try (Statement stmt = conn.createStatement()) {
+						log.debug("Init SQLite tables");
+						stmt.execute(createSources);
+						stmt.execute(createDestinations);
+						stmt.execute(createConfig);
+					}
+				});
 			} catch (final SQLException e) {
 				throw new RuntimeException("Can't setup database", e);
 			} catch (final IOException e) {
@@ -91,38 +104,59 @@ public class ConfigurationStore {
 			}
 			config = new Properties();
 		} else {
+			config = new Properties();
 			try {
-				final Connection conn = DriverManager.getConnection(url);
-				final Statement stmt = conn.createStatement();
-
-				final ResultSet rsSources = stmt.executeQuery("SELECT path FROM sources");
-				while (rsSources.next()) {
-					final File f = new File(rsSources.getString("path"));
-					if (f.exists() == false) {
-						continue;
-					}
-					sourcesList.add(new SourceEntry(f, fileSanity, digestByFileCache));
-				}
+				sqlite.accept(conn -> {
+					try (Statement stmt = conn.createStatement()) {
+						final ResultSet rsSources = stmt.executeQuery("SELECT path FROM sources");
+						while (rsSources.next()) {
+							final File f = new File(rsSources.getString("path"));
+							if (f.exists() == false) {
+								continue;
+							}
+							sourcesList.add(new SourceEntry(f, fileSanity, digestIndex, sourceSnapshotStore));
+						}
 
-				final ResultSet rsDests = stmt.executeQuery("SELECT path FROM destinations");
-				while (rsDests.next()) {
-					final File f = new File(rsDests.getString("path"));
-					if (f.exists() == false) {
-						continue;
-					}
-					destsList.add(new DestinationEntry(f));
-				}
+						final ResultSet rsDests = stmt.executeQuery("SELECT path FROM destinations");
+						while (rsDests.next()) {
+							final File f = new File(rsDests.getString("path"));
+							if (f.exists() == false) {
+								continue;
+							}
+							destsList.add(new DestinationEntry(f));
+						}
 
-				final ResultSet rsConfig = stmt.executeQuery("SELECT key, value FROM config");
-				config = new Properties();
-				while (rsConfig.next()) {
-					config.put(rsDests.getString("key"), rsDests.getString("value"));
-				}
+						final ResultSet rsConfig = stmt.executeQuery("SELECT key, value FROM config");
+						while (rsConfig.next()) {
+							config.put(rsDests.getString("key"), rsDests.getString("value"));
+						}
+					}
+				});
 			} catch (final SQLException e) {
 				throw new RuntimeException("Can't read from SQLite", e);
 			}
 		}
 
+		/**
+		 * Tables added after the database creation
+		 */
+		try {
+			final String createDigests = IOUtils.toString(getClass().getResource("createdb-digests.sql").openStream(), Charset.defaultCharset());
+			final String createSnapshotDirs = IOUtils.toString(getClass().getResource("createdb-snapshot-dirs.sql").openStream(), Charset.defaultCharset());
+			final String createSnapshotFiles = IOUtils.toString(getClass().getResource("createdb-snapshot-files.sql").openStream(), Charset.defaultCharset());
+			sqlite.accept(conn -> {
+				try (Statement stmt = conn.createStatement()) {
+					stmt.execute(createDigests);
+					stmt.execute(createSnapshotDirs);
+					stmt.execute(createSnapshotFiles);
+				}
+			});
+		} catch (final SQLException e) {
+			throw new RuntimeException("Can't setup database", e);
+		} catch (final IOException e) {
+			throw new RuntimeException("Can't access to ressource", e);
+		}
+
 		final ScheduledExecutorService delayedExecutor = Executors.newScheduledThreadPool(1);
 
 		sourcesList.addListener((ListChangeListener<SourceEntry>) change -> {
@@ -143,6 +177,7 @@ public class ConfigurationStore {
 							log.debug("DELETE sources " + path);
 							pstmt.setString(1, path);
 						});
+						sourceSnapshotStore.remove(entry.getRootPath());
 					});
 				});
 			}
@@ -207,6 +242,14 @@ public class ConfigurationStore {
 		Runtime.getRuntime().addShutdownHook(closeThread);
 	}
 
+	public DigestIndex getDigestIndex() {
+		return digestIndex;
+	}
+
+	public SourceSnapshotStore getSourceSnapshotStore() {
+		return sourceSnapshotStore;
+	}
+
 	public Optional<String> getConfigValue(final String key) {
 		return Optional.ofNullable((String) config.get(key));
 	}
@@ -235,8 +278,8 @@ public class ConfigurationStore {
 	}
 
 	private void exec(final Consumer<Connection> withDb) {
-		try (Connection conn = DriverManager.getConnection(url)) {
-			withDb.accept(conn);
+		try {
+			sqlite.accept(withDb::accept);
 		} catch (final SQLException e) {
 			throw new RuntimeException("Can't connect to SQLite", e);
 		}
@@ -0,0 +1,247 @@
+/*
+ * This file is part of mediaimporter.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * Copyright (C) hdsdi3g for hd3g.tv 2019
+ *
+*/
+package tv.hd3g.mediaimporter.tools;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Persistent digests by file, stored in the configuration SQLite database.
+ * A file is identified by its path, size, last modified date and file key (inode): a stored digest is ignored if the file has changed.
+ * Thread safe.
+ */
+public class DigestIndex {
+	private static Logger log = LogManager.getLogger();
+
+	public static final String CRC32 = "CRC32";
+	/**
+	 * MD5 of the size, the head, the tail and some evenly spaced blocks: a few reads by file, regardless of its size.
+	 */
+	public static final String SAMPLED = "SAMPLED";
+
+	private static final int SAMPLE_BLOCK_SIZE = 64 * 1024;
+	private static final int SAMPLE_INNER_BLOCKS = Math.max(0, Integer.getInteger("digest.sampled.blocks", 8));
+
+	private final SQLiteConnection sqlite;
+
+	DigestIndex(final SQLiteConnection sqlite) {
+		this.sqlite = Objects.requireNonNull(sqlite, "\"sqlite\" can't to be null");
+	}
+
+	private static class IndexKey {
+		private final String path;
+		private final long size;
+		private final long mtime;
+		private final String fileKey;
+
+		private IndexKey(final File file) throws IOException {
+			final BasicFileAttributes attributes = Files.readAttributes(file.toPath(), BasicFileAttributes.class);
+			path = file.getAbsolutePath();
+			size = attributes.size();
+			mtime = attributes.lastModifiedTime().toMillis();
+			fileKey = Objects.toString(attributes.fileKey(), "");
+		}
+
+		private void setTo(final PreparedStatement pstmt) throws SQLException {
+			pstmt.setString(1, path);
+			pstmt.setLong(2, size);
+			pstmt.setLong(3, mtime);
+			pstmt.setString(4, fileKey);
+		}
+	}
+
+	/**
+	 * @return digest by kind (CRC32, MD5, SHA-256...), only the digests stored for the actual file version. Empty if the database can't be read: it's only a cache.
+	 */
+	public Map<String, String> get(final File file) {
+		final IndexKey key;
+		try {
+			key = new IndexKey(file);
+		} catch (final IOException e) {
+			log.warn("Can't read attributes for " + file, e);
+			return Map.of();
+		}
+
+		try {
+			return sqlite.apply(conn -> {
+				try (final PreparedStatement pstmt = conn.prepareStatement("SELECT kind, digest FROM digests WHERE path = ? AND size = ? AND mtime = ? AND filekey = ?")) {
+					key.setTo(pstmt);
+					final Map<String, String> result = new HashMap<>();
+					try (final ResultSet rs = pstmt.executeQuery()) {
+						while (rs.next()) {
+							result.put(rs.getString("kind"), rs.getString("digest"));
+						}
+					}
+					return Map.copyOf(result);
+				}
+			});
+		} catch (final SQLException e) {
+			log.warn("Can't read digest index for " + file, e);
+			return Map.of();
+		}
+	}
+
+	/**
+	 * Replace the previous digests with the same kind.
+	 * A write error is only logged: it's only a cache.
+	 */
+	public void put(final File file, final Map<String, String> digestByKind) {
+		if (digestByKind.isEmpty()) {
+			return;
+		}
+		final IndexKey key;
+		try {
+			key = new IndexKey(file);
+		} catch (final IOException e) {
+			log.warn("Can't read attributes for " + file, e);
+			return;
+		}
+
+		try {
+			sqlite.accept(conn -> {
+				conn.setAutoCommit(false);
+				try (final PreparedStatement pstmt = conn.prepareStatement("INSERT OR REPLACE INTO digests(path, size, mtime, filekey, kind, digest) VALUES(?, ?, ?, ?, ?, ?)")) {
+					for (final Map.Entry<String, String> entry : digestByKind.entrySet()) {
+						key.setTo(pstmt);
+						pstmt.setString(5, entry.getKey());
+						pstmt.setString(6, entry.getValue());
+						pstmt.addBatch();
+					}
+					pstmt.executeBatch();
+					conn.commit();
+				} catch (final SQLException e) {
+					conn.rollback();
+					throw e;
+				} finally {
+					conn.setAutoCommit(true);
+				}
+			});
+			log.trace("Store {} in digest index for {}", digestByKind.keySet(), file);
+		} catch (final SQLException e) {
+			log.warn("Can't write digest index for " + file, e);
+		}
+	}
+
+	/**
+	 * Computed only if not stored for the actual file version.
+	 */
+	public long getCRC32(final File file) {
+		final String stored = get(file).get(CRC32);
+		if (stored != null) {
+			return Long.parseLong(stored, 16);
+		}
+
+		final long crc;
+		try {
+			crc = FileUtils.checksumCRC32(file);
+		} catch (final IOException e) {
+			throw new RuntimeException("Can't read " + file.getPath(), e);
+		}
+		put(file, Map.of(CRC32, Long.toHexString(crc)));
+		return crc;
+	}
+
+	/**
+	 * Computed only if not stored for the actual file version.
+	 * Two files with the same sampled fingerprint have the same size, and the same content for all the sampled blocks. A little file is fully read.
+	 */
+	public String getSampledFingerprint(final File file) {
+		final String stored = get(file).get(SAMPLED);
+		if (stored != null) {
+			return stored;
+		}
+
+		final String fingerprint;
+		try {
+			fingerprint = computeSampledFingerprint(file);
+		} catch (final IOException e) {
+			throw new RuntimeException("Can't read " + file.getPath(), e);
+		}
+		put(file, Map.of(SAMPLED, fingerprint));
+		return fingerprint;
+	}
+
+	private static String computeSampledFingerprint(final File file) throws IOException {
+		final MessageDigest md5;
+		try {
+			md5 = MessageDigest.getInstance("MD5");
+		} catch (final NoSuchAlgorithmException e) {
+			throw new RuntimeException("Can't get MD5", e);
+		}
+
+		try (final FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			final long size = channel.size();
+			md5.update(ByteBuffer.allocate(Long.BYTES).putLong(0, size));
+
+			final ByteBuffer buffer = ByteBuffer.allocate(SAMPLE_BLOCK_SIZE);
+			final long sampledSize = (long) SAMPLE_BLOCK_SIZE * (SAMPLE_INNER_BLOCKS + 2);
+			if (size <= sampledSize) {
+				/**
+				 * The samples would overlap: take all.
+				 */
+				for (long position = 0; position < size; position += SAMPLE_BLOCK_SIZE) {
+					updateWithBlock(md5, channel, buffer, position);
+				}
+			} else {
+				/**
+				 * Head, inner blocks, tail.
+				 */
+				final long step = (size - SAMPLE_BLOCK_SIZE) / (SAMPLE_INNER_BLOCKS + 1);
+				for (int pos = 0; pos < SAMPLE_INNER_BLOCKS + 1; pos++) {
+					updateWithBlock(md5, channel, buffer, step * pos);
+				}
+				updateWithBlock(md5, channel, buffer, size - SAMPLE_BLOCK_SIZE);
+			}
+		}
+
+		final StringBuilder sb = new StringBuilder();
+		for (final byte b : md5.digest()) {
+			sb.append(String.format("%02x", b & 0xFF));
+		}
+		return sb.toString();
+	}
+
+	private static void updateWithBlock(final MessageDigest digest, final FileChannel channel, final ByteBuffer buffer, final long position) throws IOException {
+		buffer.clear();
+		while (buffer.hasRemaining()) {
+			final int readed = channel.read(buffer, position + buffer.position());
+			if (readed < 1) {
+				break;
+			}
+		}
+		buffer.flip();
+		digest.update(buffer);
+	}
+
+}
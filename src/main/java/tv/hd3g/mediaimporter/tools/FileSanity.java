@@ -16,13 +16,21 @@
 */
 package tv.hd3g.mediaimporter.tools;
 
-import java.io.File;
+import java.nio.file.attribute.BasicFileAttributes;
 
 import org.apache.commons.lang3.SystemUtils;
 
 public interface FileSanity {
 
-	boolean isFileIsValid(File regularFile);
+	/**
+	 * @return the attributes type to read one time for each walked file and dir, then passed to isValid
+	 */
+	Class<? extends BasicFileAttributes> getAttributesType();
+
+	/**
+	 * @param attributes read without follow links, for a file or for its parent dir.
+	 */
+	boolean isValid(BasicFileAttributes attributes);
 
 	static FileSanity get() {
 		if (SystemUtils.IS_OS_MAC_OSX) {
@@ -16,38 +16,19 @@
 */
 package tv.hd3g.mediaimporter.tools;
 
-import java.io.File;
-import java.io.IOException;
-import java.nio.file.Files;
-import java.nio.file.attribute.DosFileAttributeView;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.nio.file.attribute.DosFileAttributes;
 
-import org.apache.logging.log4j.LogManager;
-import org.apache.logging.log4j.Logger;
-
 public class FileSanityWindows implements FileSanity {
 
-	private static Logger log = LogManager.getLogger();
-
 	@Override
-	public boolean isFileIsValid(final File regularFile) {
-		try {
-			final DosFileAttributes dosAttr = Files.getFileAttributeView(regularFile.toPath(), DosFileAttributeView.class).readAttributes();
-			if (dosAttr.isOther() || dosAttr.isSymbolicLink() || dosAttr.isSystem()) {
-				return false;
-			}
-			final File parent = regularFile.getParentFile();
-			if (parent != null) {
-				final DosFileAttributes parentDosAttr = Files.getFileAttributeView(parent.toPath(), DosFileAttributeView.class).readAttributes();
-				if (parentDosAttr.isOther() || parentDosAttr.isSymbolicLink() || parentDosAttr.isSystem()) {
-					return false;
-				}
-			}
-			return true;
-		} catch (final IOException e) {
-			log.error("Can't check file {}", regularFile, e);
-		}
+	public Class<? extends BasicFileAttributes> getAttributesType() {
+		return DosFileAttributes.class;
+	}
 
-		return false;
+	@Override
+	public boolean isValid(final BasicFileAttributes attributes) {
+		final DosFileAttributes dosAttr = (DosFileAttributes) attributes;
+		return (dosAttr.isOther() || dosAttr.isSymbolicLink() || dosAttr.isSystem()) == false;
 	}
 }
@@ -0,0 +1,75 @@
+/*
+ * This file is part of mediaimporter.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * Copyright (C) hdsdi3g for hd3g.tv 2019
+ *
+*/
+package tv.hd3g.mediaimporter.tools;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Objects;
+
+/**
+ * A single SQLite connection for all the stores on the same database (configuration, digest index, source snapshots), opened on the first use and kept open.
+ * SQLite allows only one writer at a time: all the accesses are serialized here. WAL and busy_timeout cover the accesses from an other process.
+ * Thread safe.
+ */
+class SQLiteConnection {
+
+	private static final int BUSY_TIMEOUT_MSEC = 10_000;
+
+	private final String url;
+	private Connection connection;
+
+	SQLiteConnection(final String url) {
+		this.url = Objects.requireNonNull(url, "\"url\" can't to be null");
+	}
+
+	/**
+	 * Blocking: the other threads wait the end of withConnection. Don't close the provided connection.
+	 */
+	synchronized <T> T apply(final SQLFunction<T> withConnection) throws SQLException {
+		if (connection == null || connection.isClosed()) {
+			connection = DriverManager.getConnection(url);
+			try (final Statement stmt = connection.createStatement()) {
+				stmt.execute("PRAGMA busy_timeout = " + BUSY_TIMEOUT_MSEC);
+				stmt.execute("PRAGMA journal_mode = WAL");
+			}
+		}
+		return withConnection.apply(connection);
+	}
+
+	/**
+	 * Like apply, without result.
+	 */
+	void accept(final SQLConsumer withConnection) throws SQLException {
+		apply(conn -> {
+			withConnection.accept(conn);
+			return null;
+		});
+	}
+
+	@FunctionalInterface
+	interface SQLFunction<T> {
+		T apply(Connection conn) throws SQLException;
+	}
+
+	@FunctionalInterface
+	interface SQLConsumer {
+		void accept(Connection conn) throws SQLException;
+	}
+
+}
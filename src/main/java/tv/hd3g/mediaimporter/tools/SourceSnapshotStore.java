@@ -0,0 +1,216 @@
+/*
+ * This file is part of mediaimporter.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * Copyright (C) hdsdi3g for hd3g.tv 2019
+ *
+*/
+package tv.hd3g.mediaimporter.tools;
+
+import java.io.File;
+import java.nio.file.Path;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Persistent state of the source dir trees after their last scan, stored in the configuration SQLite database.
+ * Only the valid and non empty files are kept (see FileSanity).
+ * Thread safe.
+ */
+public class SourceSnapshotStore {
+	private static Logger log = LogManager.getLogger();
+
+	private final SQLiteConnection sqlite;
+
+	SourceSnapshotStore(final SQLiteConnection sqlite) {
+		this.sqlite = Objects.requireNonNull(sqlite, "\"sqlite\" can't to be null");
+	}
+
+	public static class FileState {
+		public final Path path;
+		public final long size;
+		public final long mtime;
+
+		public FileState(final Path path, final long size, final long mtime) {
+			this.path = path;
+			this.size = size;
+			this.mtime = mtime;
+		}
+	}
+
+	/**
+	 * Immutable, a dir state not changed between two scans is kept as is.
+	 */
+	public static class DirState {
+		public final long mtime;
+		/**
+		 * Date of the listing for this dir content.
+		 */
+		public final long listedDate;
+		public final boolean valid;
+		public final List<Path> subDirs;
+		public final List<FileState> files;
+
+		public DirState(final long mtime, final long listedDate, final boolean valid, final List<Path> subDirs, final List<FileState> files) {
+			this.mtime = mtime;
+			this.listedDate = listedDate;
+			this.valid = valid;
+			this.subDirs = List.copyOf(subDirs);
+			this.files = List.copyOf(files);
+		}
+	}
+
+	/**
+	 * @return dir state by dir path, empty if never scanned
+	 */
+	public Map<Path, DirState> load(final File rootPath) {
+		final String source = rootPath.getAbsolutePath();
+
+		final Map<Path, long[]> dirDates = new HashMap<>();
+		final Map<Path, Boolean> dirValidity = new HashMap<>();
+		final Map<Path, List<Path>> subDirsByDir = new HashMap<>();
+		final Map<Path, List<FileState>> filesByDir = new HashMap<>();
+
+		try {
+			sqlite.accept(conn -> {
+				try (final PreparedStatement dirsPstmt = conn.prepareStatement("SELECT path, mtime, listed, valid FROM snapshot_dirs WHERE source = ?"); final PreparedStatement filesPstmt = conn.prepareStatement("SELECT dir, path, size, mtime FROM snapshot_files WHERE source = ?")) {
+					dirsPstmt.setString(1, source);
+					try (final ResultSet rs = dirsPstmt.executeQuery()) {
+						while (rs.next()) {
+							final Path dir = Path.of(rs.getString("path"));
+							dirDates.put(dir, new long[] { rs.getLong("mtime"), rs.getLong("listed") });
+							dirValidity.put(dir, rs.getInt("valid") == 1);
+							subDirsByDir.put(dir, new ArrayList<>());
+							filesByDir.put(dir, new ArrayList<>());
+						}
+					}
+
+					filesPstmt.setString(1, source);
+					try (final ResultSet rs = filesPstmt.executeQuery()) {
+						while (rs.next()) {
+							final List<FileState> files = filesByDir.get(Path.of(rs.getString("dir")));
+							if (files != null) {
+								files.add(new FileState(Path.of(rs.getString("path")), rs.getLong("size"), rs.getLong("mtime")));
+							}
+						}
+					}
+				}
+			});
+		} catch (final SQLException e) {
+			throw new RuntimeException("Can't read from SQLite", e);
+		}
+
+		dirDates.keySet().forEach(dir -> {
+			final List<Path> parentSubDirs = subDirsByDir.get(dir.getParent());
+			if (parentSubDirs != null) {
+				parentSubDirs.add(dir);
+			}
+		});
+
+		final Map<Path, DirState> result = new HashMap<>();
+		dirDates.forEach((dir, dates) -> {
+			result.put(dir, new DirState(dates[0], dates[1], dirValidity.get(dir), subDirsByDir.get(dir), filesByDir.get(dir)));
+		});
+		log.debug("Load snapshot for {}: {} dir(s)", rootPath, result.size());
+		return result;
+	}
+
+	/**
+	 * Only write the removed and changed dirs (a changed dir is a new DirState instance).
+	 */
+	public void update(final File rootPath, final Map<Path, DirState> previous, final Map<Path, DirState> actual) {
+		final String source = rootPath.getAbsolutePath();
+
+		try {
+			sqlite.accept(conn -> {
+				conn.setAutoCommit(false);
+				try (final PreparedStatement deleteDir = conn.prepareStatement("DELETE FROM snapshot_dirs WHERE source = ? AND path = ?"); final PreparedStatement deleteFiles = conn.prepareStatement("DELETE FROM snapshot_files WHERE source = ? AND dir = ?"); final PreparedStatement insertDir = conn.prepareStatement("INSERT INTO snapshot_dirs(source, path, mtime, listed, valid) VALUES(?, ?, ?, ?, ?)"); final PreparedStatement insertFile = conn.prepareStatement("INSERT INTO snapshot_files(source, dir, path, size, mtime) VALUES(?, ?, ?, ?, ?)")) {
+					int changes = 0;
+
+					for (final Path dir : previous.keySet()) {
+						if (actual.get(dir) != previous.get(dir)) {
+							deleteDir.setString(1, source);
+							deleteDir.setString(2, dir.toString());
+							deleteDir.addBatch();
+							deleteFiles.setString(1, source);
+							deleteFiles.setString(2, dir.toString());
+							deleteFiles.addBatch();
+							changes++;
+						}
+					}
+
+					for (final Map.Entry<Path, DirState> entry : actual.entrySet()) {
+						final DirState state = entry.getValue();
+						if (previous.get(entry.getKey()) == state) {
+							continue;
+						}
+						insertDir.setString(1, source);
+						insertDir.setString(2, entry.getKey().toString());
+						insertDir.setLong(3, state.mtime);
+						insertDir.setLong(4, state.listedDate);
+						insertDir.setInt(5, state.valid ? 1 : 0);
+						insertDir.addBatch();
+						for (final FileState file : state.files) {
+							insertFile.setString(1, source);
+							insertFile.setString(2, entry.getKey().toString());
+							insertFile.setString(3, file.path.toString());
+							insertFile.setLong(4, file.size);
+							insertFile.setLong(5, file.mtime);
+							insertFile.addBatch();
+						}
+						changes++;
+					}
+
+					deleteDir.executeBatch();
+					deleteFiles.executeBatch();
+					insertDir.executeBatch();
+					insertFile.executeBatch();
+					conn.commit();
+					log.debug("Update snapshot for {}: {} changed dir(s) on {}", rootPath, changes, actual.size());
+				} catch (final SQLException e) {
+					conn.rollback();
+					throw e;
+				} finally {
+					conn.setAutoCommit(true);
+				}
+			});
+		} catch (final SQLException e) {
+			throw new RuntimeException("Can't write to SQLite", e);
+		}
+	}
+
+	public void remove(final File rootPath) {
+		final String source = rootPath.getAbsolutePath();
+		try {
+			sqlite.accept(conn -> {
+				try (final PreparedStatement deleteDirs = conn.prepareStatement("DELETE FROM snapshot_dirs WHERE source = ?"); final PreparedStatement deleteFiles = conn.prepareStatement("DELETE FROM snapshot_files WHERE source = ?")) {
+					deleteDirs.setString(1, source);
+					deleteDirs.executeUpdate();
+					deleteFiles.setString(1, source);
+					deleteFiles.executeUpdate();
+				}
+			});
+		} catch (final SQLException e) {
+			throw new RuntimeException("Can't write to SQLite", e);
+		}
+	}
+
+}
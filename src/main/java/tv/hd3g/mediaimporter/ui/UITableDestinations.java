@@ -17,11 +17,15 @@
 package tv.hd3g.mediaimporter.ui;
 
 import java.io.File;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.function.Consumer;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
+import javafx.application.Platform;
 import javafx.scene.control.Button;
 import javafx.scene.control.TableColumn;
 import javafx.scene.control.TableRow;
@@ -30,6 +34,8 @@ import javafx.scene.input.MouseButton;
 import javafx.stage.Window;
 import tv.hd3g.mediaimporter.BaseSourceDestEntry;
 import tv.hd3g.mediaimporter.DestinationEntry;
+import tv.hd3g.mediaimporter.FileEntry;
+import tv.hd3g.mediaimporter.FileEntry.ProbedDestination;
 import tv.hd3g.mediaimporter.MainApp;
 import tv.hd3g.mediaimporter.Messages;
 import tv.hd3g.mediaimporter.TargetedFileEntries;
@@ -69,8 +75,28 @@ public interface UITableDestinations extends PanelBackendProvider {
 				log.info("Add new dest directory: " + file);
 				toAdd.updateSlotsContent();
 				destsList.add(toAdd);
-				fileList.forEach(fileEntry -> {
-					fileEntry.addDestination(toAdd);
+
+				/**
+				 * The copies are searched (walks and file reads) out of the FX thread, and only added to the file entries on it.
+				 */
+				final List<FileEntry> fileEntries = List.copyOf(fileList);
+				getBackend().getProbeExecutor().execute(() -> {
+					final Map<FileEntry, ProbedDestination> probedDestinations = new LinkedHashMap<>();
+					fileEntries.forEach(fileEntry -> {
+						try {
+							probedDestinations.put(fileEntry, fileEntry.probeNewDestination(toAdd));
+						} catch (final RuntimeException e) {
+							log.error("Can't probe " + fileEntry + " on " + toAdd, e);
+						}
+					});
+					Platform.runLater(() -> {
+						/**
+						 * This destination may have been removed during the probes.
+						 */
+						if (destsList.contains(toAdd)) {
+							probedDestinations.forEach(FileEntry::addDestination);
+						}
+					});
 				});
 			}
 		};
@@ -0,0 +1,11 @@
+-- use with SQLite
+
+CREATE TABLE IF NOT EXISTS "digests" (
+	"path"	TEXT NOT NULL,
+	"size"	INTEGER NOT NULL,
+	"mtime"	INTEGER NOT NULL,
+	"filekey"	TEXT NOT NULL,
+	"kind"	TEXT NOT NULL,
+	"digest"	TEXT NOT NULL,
+	PRIMARY KEY("path","kind")
+);
@@ -0,0 +1,10 @@
+-- use with SQLite
+
+CREATE TABLE IF NOT EXISTS "snapshot_dirs" (
+	"source"	TEXT NOT NULL,
+	"path"	TEXT NOT NULL,
+	"mtime"	INTEGER NOT NULL,
+	"listed"	INTEGER NOT NULL,
+	"valid"	INTEGER NOT NULL,
+	PRIMARY KEY("source","path")
+);
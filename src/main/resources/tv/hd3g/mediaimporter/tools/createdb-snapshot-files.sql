@@ -0,0 +1,10 @@
+-- use with SQLite
+
+CREATE TABLE IF NOT EXISTS "snapshot_files" (
+	"source"	TEXT NOT NULL,
+	"dir"	TEXT NOT NULL,
+	"path"	TEXT NOT NULL,
+	"size"	INTEGER NOT NULL,
+	"mtime"	INTEGER NOT NULL,
+	PRIMARY KEY("source","dir","path")
+);